@@ -32,4 +32,30 @@ public class ConfigLoader {
     public static String getProperty(String key, String defaultValue) {
         return props.getProperty(key, defaultValue);
     }
+
+    public static int getIntProperty(String key, int defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("{}={} is not an integer, use default value {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLongProperty(String key, long defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("{}={} is not a long, use default value {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
 }
@@ -38,4 +38,21 @@ public class User {
         this.active = true;
         this.loginTimes = 0;
     }
+
+    /**
+     * A copy of the data, the locks are not shared.
+     */
+    public User copy() {
+        User copy = new User();
+        copy.setUserId(userId);
+        copy.setUsername(username);
+        copy.setPassword(password);
+        copy.setEmail(email);
+        copy.setBalance(balance);
+        copy.setCreatedAt(createdAt == null ? null : new Date(createdAt.getTime()));
+        copy.setActive(active);
+        copy.setLoginTimes(loginTimes);
+        copy.setLocked(locked);
+        return copy;
+    }
 }
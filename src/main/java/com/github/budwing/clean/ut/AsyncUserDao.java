@@ -0,0 +1,177 @@
+package com.github.budwing.clean.ut;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.github.budwing.ConfigLoader;
+import com.github.budwing.User;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs {@link UserDao} operations on a dedicated executor and returns
+ * CompletableFuture, so a request thread can fan out several lookups and
+ * compose the results instead of blocking on each JDBC call.
+ * 1. at most maxInFlight operations are running or queued, one more fails
+ * fast with a RejectedExecutionException instead of queueing without bound
+ * 2. by default the work runs on a fixed pool of platform threads, on JDK 21+
+ * virtual threads can be used instead, the connection pool still bounds the
+ * database work
+ */
+@Slf4j
+public class AsyncUserDao implements AutoCloseable {
+    private final UserRepository userDao;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    public AsyncUserDao(UserRepository userDao, ExecutorService executor, int maxInFlight) {
+        this.userDao = userDao;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Creates a facade configured by the async.userDao.* keys of app.properties.
+     */
+    public static AsyncUserDao fromConfig(UserRepository userDao) {
+        int threads = ConfigLoader.getIntProperty("async.userDao.threads", 10);
+        int queueSize = ConfigLoader.getIntProperty("async.userDao.queueSize", 1000);
+        boolean virtualThreads = Boolean.parseBoolean(
+                ConfigLoader.getProperty("async.userDao.virtualThreads", "false"));
+        ExecutorService executor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (executor == null) {
+            executor = newBoundedExecutor(threads, queueSize);
+        }
+        return new AsyncUserDao(userDao, executor, threads + queueSize);
+    }
+
+    public static ExecutorService newBoundedExecutor(int threads, int queueSize) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "user-dao-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor only exists on JDK 21+, the
+     * project is compiled for 17, so it is looked up by reflection.
+     *
+     * @return the executor, or null if the running JDK has no virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("virtual threads are not available on Java {}, use platform threads",
+                    System.getProperty("java.version"));
+            return null;
+        }
+    }
+
+    public CompletableFuture<User> selectByAsync(String username, String password) {
+        return submit(dao -> dao.selectBy(username, password));
+    }
+
+    public CompletableFuture<UserCredentials> selectCredentialsByAsync(String username) {
+        return submit(dao -> dao.selectCredentialsBy(username));
+    }
+
+    public CompletableFuture<User> selectByIdAsync(String userId) {
+        return submit(dao -> dao.selectById(userId));
+    }
+
+    public CompletableFuture<Map<String, User>> selectByIdsAsync(Collection<String> userIds) {
+        return submit(dao -> dao.selectByIds(userIds));
+    }
+
+    public CompletableFuture<List<User>> selectPageAsync(String afterUserId, int limit) {
+        return submit(dao -> dao.selectPage(afterUserId, limit));
+    }
+
+    public CompletableFuture<Boolean> insertAsync(User user) {
+        return submit(dao -> dao.insert(user));
+    }
+
+    public CompletableFuture<List<BatchOutcome>> insertAllAsync(Collection<User> users) {
+        return submit(dao -> dao.insertAll(users));
+    }
+
+    public CompletableFuture<Boolean> upsertAsync(User user) {
+        return submit(dao -> dao.upsert(user));
+    }
+
+    public CompletableFuture<List<BatchOutcome>> upsertAllAsync(Collection<User> users) {
+        return submit(dao -> dao.upsertAll(users));
+    }
+
+    public CompletableFuture<Boolean> updateAsync(User user) {
+        return submit(dao -> dao.update(user));
+    }
+
+    public CompletableFuture<List<BatchOutcome>> updateAllAsync(Collection<User> users) {
+        return submit(dao -> dao.updateAll(users));
+    }
+
+    public CompletableFuture<Boolean> deleteByIdAsync(String userId) {
+        return submit(dao -> dao.deleteById(userId));
+    }
+
+    /**
+     * Runs any operation of the UserDao on the executor.
+     * A rejected operation returns a future failed with
+     * RejectedExecutionException, it never blocks the caller.
+     */
+    public <T> CompletableFuture<T> submit(Function<UserRepository, T> operation) {
+        if (!inFlight.tryAcquire()) {
+            return CompletableFuture.failedFuture(
+                    new RejectedExecutionException("too many user dao operations in flight"));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> operation.apply(userDao), executor)
+                    .whenComplete((result, error) -> inFlight.release());
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return the operations currently running or queued
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.budwing.clean.ut;
+
+/**
+ * The outcome of one row in a batched write.
+ */
+public enum BatchOutcome {
+    /**
+     * the row was written and its transaction committed
+     */
+    SUCCESS,
+    /**
+     * the statement ran but changed nothing
+     */
+    NO_CHANGE,
+    /**
+     * the chunk containing the row was rolled back
+     */
+    FAILED
+}
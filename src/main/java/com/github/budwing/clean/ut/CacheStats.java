@@ -0,0 +1,26 @@
+package com.github.budwing.clean.ut;
+
+import lombok.Value;
+
+/**
+ * A point-in-time snapshot of {@link LocalCache} metrics.
+ */
+@Value
+public class CacheStats {
+    int size;
+    long hits;
+    long misses;
+    /**
+     * entries removed to keep the cache within its maximum size
+     */
+    long evictions;
+    /**
+     * entries removed because they outlived the time to live
+     */
+    long expirations;
+
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+}
@@ -0,0 +1,346 @@
+package com.github.budwing.clean.ut;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.github.budwing.ConfigLoader;
+import com.github.budwing.User;
+
+/**
+ * A read-through cache in front of another {@link UserRepository}.
+ * It is a decorator, every operation is delegated, only selectById and
+ * selectByIds are served from the cache:
+ * 1. a cache miss loads the user from the delegate and caches it
+ * 2. every write invalidates the users it touches
+ * after the delegate wrote them, so a reader never sees a user older than
+ * the last write through this instance. The cache is indexed by username, so
+ * the writes by username invalidate without a scan
+ * 3. the cache holds copies, a caller changing a returned user does not change
+ * the cached one
+ * 4. optionally, failed selectBy lookups are remembered for a short time in a
+ * negative cache of username to the failed password hashes, and names that
+ * selectCredentialsBy found no user for are remembered as unknown, so
+ * repeated failed logins, e.g. a credential-stuffing burst, don't reach the
+ * database. Inserts and upserts of a username invalidate its entry, updates
+ * only an unknown name, the other writes cannot turn a failed lookup into a
+ * found one
+ * 5. credentials of existing users are never cached, locked must be seen as
+ * soon as it is written
+ */
+public class CachingUserDao implements UserRepository {
+    /**
+     * Failed password hashes kept per username, a name with more starts over.
+     */
+    private static final int MAX_MISSES_PER_NAME = 16;
+    /**
+     * The negative cache entry of a name without a user, every password misses.
+     */
+    private static final Set<String> UNKNOWN_NAME = Collections.emptySet();
+
+    private final UserRepository delegate;
+    private final LocalCache<String, User> cache;
+    private LocalCache<String, Set<String>> missCache;
+
+    /**
+     * Creates the caches configured by the cache.user.* and cache.loginMiss.*
+     * keys of app.properties, a maxSize of 0 disables the negative cache.
+     */
+    public CachingUserDao(UserRepository delegate) {
+        this(delegate, new LocalCache<>(
+                ConfigLoader.getIntProperty("cache.user.maxSize", 10000),
+                ConfigLoader.getLongProperty("cache.user.ttlMillis", 60000),
+                LocalCache.EvictionPolicy.valueOf(ConfigLoader.getProperty("cache.user.evictionPolicy", "LRU"))));
+        int missCacheSize = ConfigLoader.getIntProperty("cache.loginMiss.maxSize", 100000);
+        if (missCacheSize > 0) {
+            setMissCache(new LocalCache<>(missCacheSize,
+                    ConfigLoader.getLongProperty("cache.loginMiss.ttlMillis", 5000),
+                    LocalCache.EvictionPolicy.LRU));
+        }
+    }
+
+    public CachingUserDao(UserRepository delegate, LocalCache<String, User> cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+        cache.indexBy(User::getUsername);
+    }
+
+    /**
+     * Enables the negative cache of selectBy, null disables it.
+     */
+    public void setMissCache(LocalCache<String, Set<String>> missCache) {
+        this.missCache = missCache;
+    }
+
+    public UserRepository getDelegate() {
+        return delegate;
+    }
+
+    public CacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * @return the metrics of the negative cache, or null if it is disabled
+     */
+    public CacheStats getMissCacheStats() {
+        return missCache == null ? null : missCache.getStats();
+    }
+
+    @Override
+    public User selectById(String userId) {
+        User cached = cache.get(userId);
+        if (cached != null) {
+            return cached.copy();
+        }
+        long stamp = cache.stamp();
+        User user = delegate.selectById(userId);
+        if (user != null) {
+            cache.putIfNotInvalidated(userId, user.copy(), stamp);
+        }
+        return user;
+    }
+
+    @Override
+    public Map<String, User> selectByIds(Collection<String> userIds) {
+        Map<String, User> users = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String userId : userIds) {
+            User cached = cache.get(userId);
+            users.put(userId, cached == null ? null : cached.copy());
+            if (cached == null) {
+                missing.add(userId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return users;
+        }
+        long stamp = cache.stamp();
+        delegate.selectByIds(missing).forEach((userId, user) -> {
+            users.put(userId, user);
+            if (user != null) {
+                cache.putIfNotInvalidated(userId, user.copy(), stamp);
+            }
+        });
+        return users;
+    }
+
+    @Override
+    public User selectBy(String username, String password) {
+        if (missCache == null) {
+            return delegate.selectBy(username, password);
+        }
+        String hashedPassword = delegate.hashPassword(password);
+        Set<String> misses = missCache.get(username);
+        if (misses == UNKNOWN_NAME || misses != null && misses.contains(hashedPassword)) {
+            return null;
+        }
+        long stamp = missCache.stamp();
+        User user = delegate.selectBy(username, password);
+        if (user == null) {
+            Set<String> updated = new HashSet<>();
+            if (misses != null && misses.size() < MAX_MISSES_PER_NAME) {
+                updated.addAll(misses);
+            }
+            updated.add(hashedPassword);
+            missCache.putIfNotInvalidated(username, Collections.unmodifiableSet(updated), stamp);
+        }
+        return user;
+    }
+
+    private void invalidateMisses(String username) {
+        if (missCache != null && username != null) {
+            missCache.invalidate(username);
+        }
+    }
+
+    /**
+     * A written user exists, its name is not unknown. Its failed passwords are
+     * kept, the write does not make them match.
+     */
+    private void invalidateUnknownName(String username) {
+        if (missCache != null && username != null) {
+            missCache.invalidate(username, UNKNOWN_NAME);
+        }
+    }
+
+    /**
+     * Only a name without a user is cached, in the negative cache.
+     */
+    @Override
+    public UserCredentials selectCredentialsBy(String username) {
+        if (missCache == null) {
+            return delegate.selectCredentialsBy(username);
+        }
+        if (missCache.get(username) == UNKNOWN_NAME) {
+            return null;
+        }
+        long stamp = missCache.stamp();
+        UserCredentials credentials = delegate.selectCredentialsBy(username);
+        if (credentials == null) {
+            missCache.putIfNotInvalidated(username, UNKNOWN_NAME, stamp);
+        }
+        return credentials;
+    }
+
+    @Override
+    public List<User> selectPage(String afterUserId, int limit) {
+        return delegate.selectPage(afterUserId, limit);
+    }
+
+    @Override
+    public List<User> selectPageByCreatedAt(Date afterCreatedAt, String afterUserId, int limit) {
+        return delegate.selectPageByCreatedAt(afterCreatedAt, afterUserId, limit);
+    }
+
+    @Override
+    public Stream<User> scan() {
+        return delegate.scan();
+    }
+
+    @Override
+    public void forEach(Consumer<User> action) {
+        delegate.forEach(action);
+    }
+
+    @Override
+    public boolean insert(User user) {
+        try {
+            return delegate.insert(user);
+        } finally {
+            cache.invalidate(user.getUserId());
+            invalidateMisses(user.getUsername());
+        }
+    }
+
+    @Override
+    public List<BatchOutcome> insertAll(Collection<User> users) {
+        try {
+            return delegate.insertAll(users);
+        } finally {
+            users.forEach(user -> {
+                cache.invalidate(user.getUserId());
+                invalidateMisses(user.getUsername());
+            });
+        }
+    }
+
+    @Override
+    public List<BatchOutcome> insertAllHashed(Collection<User> users) {
+        try {
+            return delegate.insertAllHashed(users);
+        } finally {
+            users.forEach(user -> {
+                cache.invalidate(user.getUserId());
+                invalidateMisses(user.getUsername());
+            });
+        }
+    }
+
+    @Override
+    public boolean upsert(User user) {
+        try {
+            return delegate.upsert(user);
+        } finally {
+            cache.invalidate(user.getUserId());
+            invalidateMisses(user.getUsername());
+        }
+    }
+
+    @Override
+    public List<BatchOutcome> upsertAll(Collection<User> users) {
+        try {
+            return delegate.upsertAll(users);
+        } finally {
+            users.forEach(user -> {
+                cache.invalidate(user.getUserId());
+                invalidateMisses(user.getUsername());
+            });
+        }
+    }
+
+    @Override
+    public boolean update(User user) {
+        try {
+            return delegate.update(user);
+        } finally {
+            cache.invalidate(user.getUserId());
+            invalidateUnknownName(user.getUsername());
+        }
+    }
+
+    @Override
+    public List<BatchOutcome> updateAll(Collection<User> users) {
+        try {
+            return delegate.updateAll(users);
+        } finally {
+            users.forEach(user -> {
+                cache.invalidate(user.getUserId());
+                invalidateUnknownName(user.getUsername());
+            });
+        }
+    }
+
+    @Override
+    public boolean debit(String userId, double amount) {
+        try {
+            return delegate.debit(userId, amount);
+        } finally {
+            cache.invalidate(userId);
+        }
+    }
+
+    @Override
+    public boolean debitBy(String username, String password, double amount) {
+        try {
+            return delegate.debitBy(username, password, amount);
+        } finally {
+            cache.invalidateIndexed(username);
+        }
+    }
+
+    @Override
+    public List<BatchOutcome> incrementLoginTimes(Map<String, Integer> increments) {
+        try {
+            return delegate.incrementLoginTimes(increments);
+        } finally {
+            increments.keySet().forEach(cache::invalidate);
+        }
+    }
+
+    @Override
+    public boolean deleteById(String userId) {
+        try {
+            return delegate.deleteById(userId);
+        } finally {
+            cache.invalidate(userId);
+        }
+    }
+
+    @Override
+    public boolean deleteBy(String username, String password) {
+        try {
+            return delegate.deleteBy(username, password);
+        } finally {
+            cache.invalidateIndexed(username);
+        }
+    }
+
+    @Override
+    public String hashPassword(String password) {
+        return delegate.hashPassword(password);
+    }
+
+    @Override
+    public List<String> hashPasswords(List<User> users) {
+        return delegate.hashPasswords(users);
+    }
+}
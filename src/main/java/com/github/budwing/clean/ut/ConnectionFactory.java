@@ -0,0 +1,14 @@
+package com.github.budwing.clean.ut;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Opens a new physical connection.
+ * The pool only knows this interface, so tests can hand it mocked connections
+ * instead of a real database.
+ */
+@FunctionalInterface
+public interface ConnectionFactory {
+    Connection create() throws SQLException;
+}
@@ -0,0 +1,260 @@
+package com.github.budwing.clean.ut;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.budwing.ConfigLoader;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A bounded pool of JDBC connections.
+ * Opening a physical connection costs a TCP and a MySQL handshake, which is
+ * usually more expensive than the query itself, so connections are reused:
+ * 1. at most maxSize physical connections are open at the same time
+ * 2. minIdle connections are opened up front (pre-warming)
+ * 3. a connection idle for longer than validationIntervalMillis is validated
+ * before it is handed out, broken ones are replaced
+ * 4. a borrower waits at most maxWaitMillis for a free connection
+ *
+ * Idle connections are reused in LIFO order, the most recently used one is the
+ * most likely to be still alive and warm.
+ * Each connection keeps up to statementCacheSize prepared statements, see
+ * {@link PooledConnection#prepareStatement(String)}.
+ */
+@Slf4j
+public class ConnectionPool implements AutoCloseable {
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final int minIdle;
+    private final long maxWaitMillis;
+    private final int validationTimeoutSeconds;
+    private final long validationIntervalMillis;
+    private volatile int statementCacheSize = 32;
+
+    private final Semaphore permits;
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder borrowed = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private volatile boolean closed;
+
+    public ConnectionPool(ConnectionFactory factory, int maxSize, int minIdle, long maxWaitMillis,
+            int validationTimeoutSeconds, long validationIntervalMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.minIdle = Math.min(Math.max(minIdle, 0), maxSize);
+        this.maxWaitMillis = maxWaitMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Creates a pool configured by the jdbc.pool.* keys of app.properties and
+     * pre-warms it.
+     */
+    public static ConnectionPool fromConfig(ConnectionFactory factory) {
+        ConnectionPool pool = new ConnectionPool(factory,
+                ConfigLoader.getIntProperty("jdbc.pool.maxSize", 10),
+                ConfigLoader.getIntProperty("jdbc.pool.minIdle", 2),
+                ConfigLoader.getLongProperty("jdbc.pool.maxWaitMillis", 3000),
+                ConfigLoader.getIntProperty("jdbc.pool.validationTimeoutSeconds", 2),
+                ConfigLoader.getLongProperty("jdbc.pool.validationIntervalMillis", 500));
+        pool.setStatementCacheSize(ConfigLoader.getIntProperty("jdbc.pool.statementCacheSize", 32));
+        pool.prewarm();
+        return pool;
+    }
+
+    /**
+     * Only affects connections opened afterwards.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = Math.max(statementCacheSize, 0);
+    }
+
+    /**
+     * Opens connections until minIdle of them are idle.
+     * A failure is only logged, the pool still works and will retry on borrow.
+     *
+     * @return the number of connections opened
+     */
+    public int prewarm() {
+        int opened = 0;
+        while (!closed && idle.size() < minIdle && total.get() < maxSize && permits.tryAcquire()) {
+            try {
+                idle.offerLast(open());
+                opened++;
+            } catch (SQLException e) {
+                log.warn("pre-warm connection pool failed: {}", e.getMessage());
+                break;
+            } finally {
+                permits.release();
+            }
+        }
+        log.debug("pre-warmed {} connections, {}", opened, getStats());
+        return opened;
+    }
+
+    public PooledConnection borrow() throws SQLException {
+        return borrow(maxWaitMillis);
+    }
+
+    /**
+     * Like {@link #borrow()}, but waits at most waitMillis for a free
+     * connection, 0 fails at once if there is none.
+     */
+    public PooledConnection borrow(long waitMillis) throws SQLException {
+        if (closed) {
+            throw new SQLException("connection pool is closed");
+        }
+        acquirePermit(waitMillis);
+        try {
+            PooledConnection conn = takeIdle();
+            if (conn == null) {
+                conn = open();
+            }
+            conn.markBorrowed();
+            borrowed.increment();
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void acquirePermit(long waitMillis) throws SQLException {
+        waiting.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLTimeoutException(
+                        "no connection available in " + waitMillis + "ms, " + getStats());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a connection", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private PooledConnection takeIdle() {
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            if (isUsable(conn)) {
+                return conn;
+            }
+            validationFailures.increment();
+            discard(conn);
+        }
+        return null;
+    }
+
+    private boolean isUsable(PooledConnection conn) {
+        if (System.currentTimeMillis() - conn.getLastUsedAt() < validationIntervalMillis) {
+            return true;
+        }
+        try {
+            return conn.getConnection().isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            log.debug("validate connection failed: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = factory.create();
+        total.incrementAndGet();
+        created.increment();
+        return new PooledConnection(this, connection, statementCacheSize);
+    }
+
+    /**
+     * Called by {@link PooledConnection#close()}.
+     * A connection left in a transaction is rolled back, a closed or
+     * unresettable one is discarded.
+     */
+    void release(PooledConnection conn) {
+        try {
+            if (closed || !reset(conn.getConnection())) {
+                discard(conn);
+            } else {
+                idle.offerFirst(conn);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean reset(Connection connection) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            return true;
+        } catch (SQLException e) {
+            log.warn("reset connection failed, discard it: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection conn) {
+        total.decrementAndGet();
+        conn.closeStatements();
+        try {
+            conn.getConnection().close();
+        } catch (SQLException e) {
+            log.debug("close connection error: {}", e.getMessage());
+        }
+    }
+
+    void recordStatementCacheHit() {
+        statementCacheHits.increment();
+    }
+
+    void recordStatementCacheMiss() {
+        statementCacheMisses.increment();
+    }
+
+    public PoolStats getStats() {
+        int totalCount = total.get();
+        int idleCount = idle.size();
+        return new PoolStats(totalCount, idleCount, Math.max(totalCount - idleCount, 0), waiting.get(),
+                created.sum(), borrowed.sum(), timeouts.sum(), validationFailures.sum(),
+                statementCacheHits.sum(), statementCacheMisses.sum());
+    }
+
+    /**
+     * Closes all idle connections, borrowed ones are closed when they are
+     * returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            discard(conn);
+        }
+        log.debug("connection pool closed, {}", getStats());
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.budwing.clean.ut;
+
+import lombok.Value;
+
+/**
+ * The result of one {@link UserExporter} run.
+ */
+@Value
+public class ExportStats {
+    long rows;
+    /**
+     * bytes of the export before compression
+     */
+    long bytes;
+    /**
+     * bytes written to the file, smaller than bytes when gzipped
+     */
+    long fileBytes;
+    long elapsedMillis;
+
+    /**
+     * @return uncompressed megabytes exported per second
+     */
+    public double getMegabytesPerSecond() {
+        return elapsedMillis == 0 ? 0 : bytes / 1048576.0 / (elapsedMillis / 1000.0);
+    }
+}
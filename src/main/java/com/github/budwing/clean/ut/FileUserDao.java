@@ -0,0 +1,326 @@
+package com.github.budwing.clean.ut;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.github.budwing.ConfigLoader;
+import com.github.budwing.User;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A {@link UserRepository} keeping the users in local files, for edge
+ * deployments without MySQL. See {@link UserFileStore} for the file layout.
+ * 1. a lookup by user_id or user_name is a probe of a memory-mapped hash index
+ * and a read of the mapped record, there is no system call on the way
+ * 2. every change appends a record, so a crash never leaves a half-written
+ * user behind, the indexes are rebuilt from the records when it is opened
+ * 3. a background thread compacts the data file when more than
+ * compactionGarbagePercent of it is garbage
+ * 4. passwords are stored hashed, a duplicate user_id or user_name fails like
+ * a duplicate key, like {@link InMemoryUserDao}
+ * 5. appended records are in the page cache at once, {@link #sync()} forces
+ * them to disk
+ * 6. pages and scans walk ordered sets of the keys, a page reads only its
+ * own users
+ */
+@Slf4j
+public class FileUserDao implements UserRepository, AutoCloseable {
+    private final UserFileStore store;
+    private final ScheduledExecutorService compactor;
+    private final int compactionGarbagePercent;
+    private final long minCompactionBytes;
+
+    public FileUserDao(Path directory, long compactionIntervalMillis, int compactionGarbagePercent,
+            long minCompactionBytes) {
+        try {
+            this.store = UserFileStore.open(directory);
+        } catch (Exception e) {
+            log.error("open user store failed:", e);
+            throw new RuntimeException(e);
+        }
+        this.compactionGarbagePercent = compactionGarbagePercent;
+        this.minCompactionBytes = minCompactionBytes;
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded, compactionIntervalMillis, compactionIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the store configured by the store.file.* keys of app.properties.
+     */
+    public static FileUserDao fromConfig() {
+        return new FileUserDao(Paths.get(ConfigLoader.getProperty("store.file.dir", "data")),
+                ConfigLoader.getLongProperty("store.file.compactionIntervalMillis", 60000),
+                ConfigLoader.getIntProperty("store.file.compactionGarbagePercent", 50),
+                ConfigLoader.getLongProperty("store.file.minCompactionBytes", 1048576));
+    }
+
+    public long size() {
+        return store.size();
+    }
+
+    public double getGarbageRatio() {
+        return store.getGarbageRatio();
+    }
+
+    /**
+     * Compacts the data file now.
+     */
+    public void compact() {
+        try {
+            store.compact();
+        } catch (Exception e) {
+            log.error("compact user store failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void compactIfNeeded() {
+        try {
+            if (store.getDeadBytes() >= minCompactionBytes
+                    && store.getGarbageRatio() * 100 >= compactionGarbagePercent) {
+                store.compact();
+            }
+        } catch (Exception e) {
+            log.error("compact user store failed, retry later:", e);
+        }
+    }
+
+    public void sync() {
+        store.sync();
+    }
+
+    @Override
+    public User selectBy(String username, String password) {
+        User user = store.getByName(username);
+        return user != null && user.getPassword().equals(hashPassword(password)) ? user : null;
+    }
+
+    @Override
+    public UserCredentials selectCredentialsBy(String username) {
+        User user = store.getByName(username);
+        return user == null ? null
+                : new UserCredentials(user.getUserId(), user.getPassword(), user.isLocked(), user.isActive());
+    }
+
+    @Override
+    public User selectById(String userId) {
+        return store.get(userId);
+    }
+
+    @Override
+    public Map<String, User> selectByIds(Collection<String> ids) {
+        Map<String, User> users = new LinkedHashMap<>();
+        for (String userId : ids) {
+            users.put(userId, store.get(userId));
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> selectPage(String afterUserId, int limit) {
+        UserRows.checkPageLimit(limit);
+        return store.page(afterUserId, limit);
+    }
+
+    @Override
+    public List<User> selectPageByCreatedAt(Date afterCreatedAt, String afterUserId, int limit) {
+        UserRows.checkPageLimit(limit);
+        return store.pageByCreatedAt(afterCreatedAt, afterUserId, limit);
+    }
+
+    /**
+     * Weakly consistent like a cursor: users changed during the scan may or may
+     * not be seen. A compaction does not wait for the scan.
+     */
+    @Override
+    public Stream<User> scan() {
+        return store.scan();
+    }
+
+    @Override
+    public boolean insert(User user) {
+        User row = user.copy();
+        row.setPassword(hashPassword(user.getPassword()));
+        return insertRow(row);
+    }
+
+    @Override
+    public List<BatchOutcome> insertAll(Collection<User> users) {
+        List<User> rows = new ArrayList<>(users);
+        return insertRows(rows, hashPasswords(rows));
+    }
+
+    @Override
+    public List<BatchOutcome> insertAllHashed(Collection<User> users) {
+        List<User> rows = new ArrayList<>(users);
+        return insertRows(rows, rows.stream().map(User::getPassword).collect(Collectors.toList()));
+    }
+
+    private List<BatchOutcome> insertRows(List<User> rows, List<String> hashedPasswords) {
+        return UserRows.writeAll(rows, hashedPasswords, this::insertRow);
+    }
+
+    private boolean insertRow(User row) {
+        try {
+            store.insert(row);
+            return true;
+        } catch (UserFileStore.DuplicateKeyException e) {
+            throw UserRows.duplicateKey(e.getColumn(), e.getValue());
+        } catch (Exception e) {
+            log.error("insert user failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean upsert(User user) {
+        User row = user.copy();
+        row.setPassword(hashPassword(user.getPassword()));
+        return upsertRow(row);
+    }
+
+    @Override
+    public List<BatchOutcome> upsertAll(Collection<User> users) {
+        List<User> rows = new ArrayList<>(users);
+        return UserRows.writeAll(rows, hashPasswords(rows), this::upsertRow);
+    }
+
+    private boolean upsertRow(User row) {
+        try {
+            return store.upsert(row);
+        } catch (UserFileStore.DuplicateKeyException e) {
+            throw UserRows.duplicateKey(e.getColumn(), e.getValue());
+        } catch (Exception e) {
+            log.error("upsert user failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean deleteById(String userId) {
+        return delete(userId, user -> true);
+    }
+
+    @Override
+    public boolean deleteBy(String username, String password) {
+        User user = store.getByName(username);
+        if (user == null) {
+            return false;
+        }
+        String hashedPassword = hashPassword(password);
+        return delete(user.getUserId(),
+                row -> row.getUsername().equals(username) && row.getPassword().equals(hashedPassword));
+    }
+
+    private boolean delete(String userId, Predicate<User> condition) {
+        try {
+            return store.delete(userId, condition);
+        } catch (Exception e) {
+            log.error("delete user failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes balance, active, login_times and locked, like the JDBC update.
+     */
+    @Override
+    public boolean update(User user) {
+        return change(user.getUserId(), row -> {
+            row.setBalance(user.getBalance());
+            row.setActive(user.isActive());
+            row.setLoginTimes(user.getLoginTimes());
+            row.setLocked(user.isLocked());
+            return row;
+        });
+    }
+
+    @Override
+    public List<BatchOutcome> updateAll(Collection<User> users) {
+        List<BatchOutcome> outcomes = new ArrayList<>(users.size());
+        for (User user : users) {
+            outcomes.add(update(user) ? BatchOutcome.SUCCESS : BatchOutcome.NO_CHANGE);
+        }
+        return outcomes;
+    }
+
+    @Override
+    public boolean debit(String userId, double amount) {
+        return debitRow(userId, null, amount);
+    }
+
+    @Override
+    public boolean debitBy(String username, String password, double amount) {
+        User user = store.getByName(username);
+        return user != null && debitRow(user.getUserId(), hashPassword(password), amount);
+    }
+
+    private boolean debitRow(String userId, String hashedPassword, double amount) {
+        return change(userId, row -> {
+            if (hashedPassword != null && !hashedPassword.equals(row.getPassword())
+                    || row.getBalance() < amount) {
+                return null;
+            }
+            row.setBalance(row.getBalance() - amount);
+            return row;
+        });
+    }
+
+    @Override
+    public List<BatchOutcome> incrementLoginTimes(Map<String, Integer> increments) {
+        List<BatchOutcome> outcomes = new ArrayList<>(increments.size());
+        increments.forEach((userId, increment) -> {
+            boolean changed = change(userId, row -> {
+                row.setLoginTimes(row.getLoginTimes() + increment);
+                return row;
+            });
+            outcomes.add(changed ? BatchOutcome.SUCCESS : BatchOutcome.NO_CHANGE);
+        });
+        return outcomes;
+    }
+
+    private boolean change(String userId, UnaryOperator<User> change) {
+        try {
+            return store.update(userId, change);
+        } catch (Exception e) {
+            log.error("update user failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stops the compaction and closes the files.
+     */
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(5, TimeUnit.SECONDS);
+            store.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("close user store failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+}
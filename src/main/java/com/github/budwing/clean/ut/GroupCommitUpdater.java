@@ -0,0 +1,192 @@
+package com.github.budwing.clean.ut;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.budwing.ConfigLoader;
+import com.github.budwing.User;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Group commit of {@link UserDao#update(User)}: concurrent updates share one
+ * transaction, so they share one commit and one fsync of the database log.
+ * 1. an update is queued and its caller gets a future
+ * 2. a committer thread takes the first queued update, waits at most
+ * maxDelayMillis for more, up to maxGroupSize, and writes them with
+ * {@link UserDao#updateAll(java.util.Collection)} in one transaction
+ * 3. every future of the group is completed when the transaction commits,
+ * with whether its row was changed
+ * 4. a failed group is retried update by update, so one bad row only fails
+ * its own future
+ * 5. when queueSize updates are waiting, a new one fails with
+ * RejectedExecutionException instead of blocking its caller, after close it
+ * is written at once
+ */
+@Slf4j
+public class GroupCommitUpdater implements AutoCloseable {
+    private final UserRepository userDao;
+    private final long maxDelayNanos;
+    private final int maxGroupSize;
+    private final BlockingQueue<PendingUpdate> queue;
+    private final Thread committer;
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder retriedGroups = new LongAdder();
+    private volatile boolean closed;
+
+    public GroupCommitUpdater(UserRepository userDao, long maxDelayMillis, int maxGroupSize, int queueSize) {
+        this.userDao = userDao;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxGroupSize = Math.max(maxGroupSize, 1);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.committer = new Thread(this::run, "user-group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Creates an updater configured by the groupCommit.* keys of
+     * app.properties.
+     *
+     * @return null if groupCommit.enabled is false
+     */
+    public static GroupCommitUpdater fromConfig(UserRepository userDao) {
+        if (!Boolean.parseBoolean(ConfigLoader.getProperty("groupCommit.enabled", "false"))) {
+            return null;
+        }
+        return new GroupCommitUpdater(userDao, ConfigLoader.getLongProperty("groupCommit.maxDelayMillis", 2),
+                ConfigLoader.getIntProperty("groupCommit.maxGroupSize", 200),
+                ConfigLoader.getIntProperty("groupCommit.queueSize", 10000));
+    }
+
+    /**
+     * Queues the update of balance, active, login_times and locked.
+     *
+     * @return a future completed when the update is committed, with whether
+     *         the row was changed
+     */
+    public CompletableFuture<Boolean> update(User user) {
+        PendingUpdate pending = new PendingUpdate(user.copy());
+        if (closed) {
+            commitAlone(pending);
+        } else if (!queue.offer(pending)) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("too many pending updates"));
+        } else if (closed && queue.remove(pending)) {
+            // closed in the meantime, the committer may be gone
+            commitAlone(pending);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Updates committed, by group or one by one after a failed group.
+     */
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    /**
+     * Transactions of whole groups.
+     */
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    public long getRetriedGroups() {
+        return retriedGroups.sum();
+    }
+
+    private void run() {
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingUpdate first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    commit(collectGroup(first));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds what arrives until the first update waited maxDelayMillis, or the
+     * group is full.
+     */
+    private List<PendingUpdate> collectGroup(PendingUpdate first) throws InterruptedException {
+        List<PendingUpdate> group = new ArrayList<>();
+        group.add(first);
+        long deadline = first.queuedAt + maxDelayNanos;
+        while (group.size() < maxGroupSize) {
+            long waitNanos = deadline - System.nanoTime();
+            PendingUpdate next = waitNanos > 0 ? queue.poll(waitNanos, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                break;
+            }
+            group.add(next);
+        }
+        return group;
+    }
+
+    private void commit(List<PendingUpdate> group) {
+        List<User> users = new ArrayList<>(group.size());
+        group.forEach(pending -> users.add(pending.user));
+        List<BatchOutcome> outcomes;
+        try {
+            outcomes = userDao.updateAll(users);
+        } catch (RuntimeException e) {
+            log.error("group commit of {} updates failed, retry one by one:", group.size(), e);
+            outcomes = null;
+        }
+        if (outcomes == null || outcomes.contains(BatchOutcome.FAILED)) {
+            retriedGroups.increment();
+            group.forEach(this::commitAlone);
+            return;
+        }
+        commits.increment();
+        updates.add(group.size());
+        for (int i = 0; i < group.size(); i++) {
+            group.get(i).future.complete(outcomes.get(i) == BatchOutcome.SUCCESS);
+        }
+    }
+
+    private void commitAlone(PendingUpdate pending) {
+        try {
+            pending.future.complete(userDao.update(pending.user));
+            updates.increment();
+        } catch (RuntimeException e) {
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Commits the queued updates and stops the committer.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            committer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PendingUpdate {
+        private final User user;
+        private final long queuedAt = System.nanoTime();
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        PendingUpdate(User user) {
+            this.user = user;
+        }
+    }
+}
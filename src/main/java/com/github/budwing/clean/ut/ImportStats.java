@@ -0,0 +1,27 @@
+package com.github.budwing.clean.ut;
+
+import lombok.Value;
+
+/**
+ * The result of one {@link UserCsvImporter} run. The rates are rows per second
+ * of the time a stage was busy, not waiting on its queues, the stage with the
+ * lowest rate is the bottleneck.
+ */
+@Value
+public class ImportStats {
+    long rowsRead;
+    /**
+     * rows failing the validation, they are logged with their line number
+     */
+    long rowsRejected;
+    long rowsInserted;
+    /**
+     * valid rows the database refused, e.g. in a batch with a duplicate key
+     */
+    long rowsFailed;
+    long elapsedMillis;
+    double readRowsPerSecond;
+    double parseRowsPerSecond;
+    double hashRowsPerSecond;
+    double writeRowsPerSecond;
+}
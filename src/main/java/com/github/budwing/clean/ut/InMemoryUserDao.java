@@ -0,0 +1,315 @@
+package com.github.budwing.clean.ut;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.github.budwing.User;
+
+/**
+ * A {@link UserRepository} keeping the users in memory, for tests and as a
+ * baseline of benchmarks of the JDBC path. It behaves like the users table:
+ * 1. user_id and user_name are unique, they are indexed by concurrent hash
+ * maps, a duplicate insert fails like a duplicate key
+ * 2. passwords are stored hashed and compared by hash
+ * 3. a row is never changed in place, every update atomically replaces it with
+ * a changed copy, so readers always see a whole row and conditional updates
+ * like {@link #debit(String, double)} are atomic per row
+ * 4. callers get copies, changing them does not change the store
+ * 5. every operation can be delayed by simulatedLatencyMicros to mimic a
+ * database round trip
+ */
+public class InMemoryUserDao implements UserRepository {
+    private final Map<String, User> usersById = new ConcurrentHashMap<>();
+    private final Map<String, String> userIdsByName = new ConcurrentHashMap<>();
+    /**
+     * user ids in order, for the keyset pages and scans
+     */
+    private final ConcurrentSkipListSet<String> userIds = new ConcurrentSkipListSet<>();
+    private volatile long simulatedLatencyMicros;
+
+    public void setSimulatedLatencyMicros(long simulatedLatencyMicros) {
+        this.simulatedLatencyMicros = simulatedLatencyMicros;
+    }
+
+    public int size() {
+        return usersById.size();
+    }
+
+    @Override
+    public User selectBy(String username, String password) {
+        simulateLatency();
+        User user = findByName(username);
+        return user != null && user.getPassword().equals(hashPassword(password)) ? user.copy() : null;
+    }
+
+    @Override
+    public UserCredentials selectCredentialsBy(String username) {
+        simulateLatency();
+        User row = findByName(username);
+        return row == null ? null
+                : new UserCredentials(row.getUserId(), row.getPassword(), row.isLocked(), row.isActive());
+    }
+
+    @Override
+    public User selectById(String userId) {
+        simulateLatency();
+        User user = usersById.get(userId);
+        return user == null ? null : user.copy();
+    }
+
+    @Override
+    public Map<String, User> selectByIds(Collection<String> ids) {
+        simulateLatency();
+        Map<String, User> users = new LinkedHashMap<>();
+        for (String userId : ids) {
+            User user = usersById.get(userId);
+            users.put(userId, user == null ? null : user.copy());
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> selectPage(String afterUserId, int limit) {
+        UserRows.checkPageLimit(limit);
+        simulateLatency();
+        Collection<String> ids = afterUserId == null ? userIds : userIds.tailSet(afterUserId, false);
+        return ids.stream().map(usersById::get).filter(Objects::nonNull).limit(limit).map(User::copy)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * There is no index on created_at, every page sorts all users.
+     */
+    @Override
+    public List<User> selectPageByCreatedAt(Date afterCreatedAt, String afterUserId, int limit) {
+        UserRows.checkPageLimit(limit);
+        simulateLatency();
+        Comparator<User> order = Comparator.comparing(User::getCreatedAt).thenComparing(User::getUserId);
+        User after = new User();
+        after.setCreatedAt(afterCreatedAt);
+        after.setUserId(afterUserId == null ? "" : afterUserId);
+        return usersById.values().stream()
+                .filter(user -> afterCreatedAt == null || order.compare(user, after) > 0)
+                .sorted(order).limit(limit).map(User::copy).collect(Collectors.toList());
+    }
+
+    /**
+     * Weakly consistent like a cursor: users inserted or deleted during the
+     * scan may or may not be seen.
+     */
+    @Override
+    public Stream<User> scan() {
+        simulateLatency();
+        return userIds.stream().map(usersById::get).filter(Objects::nonNull).map(User::copy);
+    }
+
+    @Override
+    public boolean insert(User user) {
+        simulateLatency();
+        User row = user.copy();
+        row.setPassword(hashPassword(user.getPassword()));
+        return insertRow(row);
+    }
+
+    @Override
+    public List<BatchOutcome> insertAll(Collection<User> users) {
+        simulateLatency();
+        List<User> rows = new ArrayList<>(users);
+        return insertRows(rows, hashPasswords(rows));
+    }
+
+    @Override
+    public List<BatchOutcome> insertAllHashed(Collection<User> users) {
+        simulateLatency();
+        List<User> rows = new ArrayList<>(users);
+        return insertRows(rows, rows.stream().map(User::getPassword).collect(Collectors.toList()));
+    }
+
+    private List<BatchOutcome> insertRows(List<User> rows, List<String> hashedPasswords) {
+        return UserRows.writeAll(rows, hashedPasswords, this::insertRow);
+    }
+
+    /**
+     * The name is reserved first, so two inserts of one name cannot both win.
+     */
+    private boolean insertRow(User row) {
+        if (userIdsByName.putIfAbsent(row.getUsername(), row.getUserId()) != null) {
+            throw UserRows.duplicateKey("user_name", row.getUsername());
+        }
+        if (usersById.putIfAbsent(row.getUserId(), row) != null) {
+            userIdsByName.remove(row.getUsername(), row.getUserId());
+            throw UserRows.duplicateKey("user_id", row.getUserId());
+        }
+        userIds.add(row.getUserId());
+        return true;
+    }
+
+    @Override
+    public boolean upsert(User user) {
+        simulateLatency();
+        User row = user.copy();
+        row.setPassword(hashPassword(user.getPassword()));
+        return upsertRow(row);
+    }
+
+    @Override
+    public List<BatchOutcome> upsertAll(Collection<User> users) {
+        simulateLatency();
+        List<User> rows = new ArrayList<>(users);
+        return UserRows.writeAll(rows, hashPasswords(rows), this::upsertRow);
+    }
+
+    /**
+     * Like the JDBC upsert: created_at of an existing user is kept, a user_name
+     * of another user changes nothing for a new user and fails for an existing
+     * one.
+     */
+    private boolean upsertRow(User row) {
+        String owner = userIdsByName.putIfAbsent(row.getUsername(), row.getUserId());
+        if (owner != null && !owner.equals(row.getUserId())) {
+            if (!usersById.containsKey(row.getUserId())) {
+                return false;
+            }
+            throw UserRows.duplicateKey("user_name", row.getUsername());
+        }
+        User[] previous = { null };
+        usersById.compute(row.getUserId(), (userId, current) -> {
+            if (current != null) {
+                row.setCreatedAt(current.getCreatedAt());
+            }
+            previous[0] = current;
+            return row;
+        });
+        if (previous[0] == null) {
+            userIds.add(row.getUserId());
+        } else if (!previous[0].getUsername().equals(row.getUsername())) {
+            userIdsByName.remove(previous[0].getUsername(), row.getUserId());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean deleteById(String userId) {
+        simulateLatency();
+        User row = usersById.remove(userId);
+        if (row == null) {
+            return false;
+        }
+        forget(row);
+        return true;
+    }
+
+    @Override
+    public boolean deleteBy(String username, String password) {
+        simulateLatency();
+        User row = findByName(username);
+        if (row == null || !row.getPassword().equals(hashPassword(password))
+                || !usersById.remove(row.getUserId(), row)) {
+            return false;
+        }
+        forget(row);
+        return true;
+    }
+
+    private void forget(User row) {
+        userIdsByName.remove(row.getUsername(), row.getUserId());
+        userIds.remove(row.getUserId());
+    }
+
+    /**
+     * Writes balance, active, login_times and locked, like the JDBC update.
+     */
+    @Override
+    public boolean update(User user) {
+        simulateLatency();
+        return updateRow(user);
+    }
+
+    private boolean updateRow(User user) {
+        return usersById.computeIfPresent(user.getUserId(), (userId, row) -> {
+            User changed = row.copy();
+            changed.setBalance(user.getBalance());
+            changed.setActive(user.isActive());
+            changed.setLoginTimes(user.getLoginTimes());
+            changed.setLocked(user.isLocked());
+            return changed;
+        }) != null;
+    }
+
+    @Override
+    public List<BatchOutcome> updateAll(Collection<User> users) {
+        simulateLatency();
+        List<BatchOutcome> outcomes = new ArrayList<>(users.size());
+        for (User user : users) {
+            outcomes.add(updateRow(user) ? BatchOutcome.SUCCESS : BatchOutcome.NO_CHANGE);
+        }
+        return outcomes;
+    }
+
+    @Override
+    public boolean debit(String userId, double amount) {
+        simulateLatency();
+        return debitRow(userId, null, amount);
+    }
+
+    @Override
+    public boolean debitBy(String username, String password, double amount) {
+        simulateLatency();
+        String userId = userIdsByName.get(username);
+        return userId != null && debitRow(userId, hashPassword(password), amount);
+    }
+
+    private boolean debitRow(String userId, String hashedPassword, double amount) {
+        boolean[] debited = { false };
+        usersById.computeIfPresent(userId, (id, row) -> {
+            if (hashedPassword != null && !hashedPassword.equals(row.getPassword())
+                    || row.getBalance() < amount) {
+                return row;
+            }
+            User changed = row.copy();
+            changed.setBalance(row.getBalance() - amount);
+            debited[0] = true;
+            return changed;
+        });
+        return debited[0];
+    }
+
+    @Override
+    public List<BatchOutcome> incrementLoginTimes(Map<String, Integer> increments) {
+        simulateLatency();
+        List<BatchOutcome> outcomes = new ArrayList<>(increments.size());
+        increments.forEach((userId, increment) -> {
+            User changed = usersById.computeIfPresent(userId, (id, row) -> {
+                User copy = row.copy();
+                copy.setLoginTimes(row.getLoginTimes() + increment);
+                return copy;
+            });
+            outcomes.add(changed == null ? BatchOutcome.NO_CHANGE : BatchOutcome.SUCCESS);
+        });
+        return outcomes;
+    }
+
+    private User findByName(String username) {
+        String userId = userIdsByName.get(username);
+        return userId == null ? null : usersById.get(userId);
+    }
+
+    private void simulateLatency() {
+        long micros = simulatedLatencyMicros;
+        if (micros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.github.budwing.clean.ut;
+
+/**
+ * The JMX view of a {@link LatencyHistogram}, all values since the start.
+ */
+public interface LatencyHistogramMXBean {
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
@@ -0,0 +1,350 @@
+package com.github.budwing.clean.ut;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.github.budwing.ConfigLoader;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Latency histograms per operation and phase, e.g. "UserDao.selectBy.execute".
+ * An operation is timed by an {@link Operation}:
+ * <pre>
+ * try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.selectBy")) {
+ *     ... borrow a connection
+ *     op.acquired();
+ *     ... execute the statement
+ *     op.executed();
+ *     ... map the rows
+ *     op.mapped();
+ * }
+ * </pre>
+ * 1. every phase records the time since the previous phase, close records the
+ * total
+ * 2. histograms are created on first use and registered as MXBeans named
+ * com.github.budwing:type=Latency,name=&lt;operation.phase&gt;
+ * 3. {@link #logSummary()} logs p50/p99/p999 of what was recorded since the
+ * last summary, {@link #startLogSummary(long)} does it periodically
+ * 4. a disabled instance hands out an operation that records nothing, one
+ * stateless instance shared by all threads
+ * 5. with a {@link SlowQueryLog}, an operation slower than its threshold is
+ * also logged with its statement, bind parameters and row count
+ * 6. nothing runs in the background until {@link #start()}, the application
+ * creates one instance, starts it and hands it to the DAOs and services
+ */
+@Slf4j
+public class LatencyMetrics implements AutoCloseable {
+    private static final String OBJECT_NAME = "com.github.budwing:type=Latency,name=";
+    private static final Operation DISABLED = new DisabledOperation();
+
+    public enum Phase {
+        TOTAL, ACQUIRE, EXECUTE, MAP;
+
+        private final String label = name().toLowerCase();
+    }
+
+    private final boolean enabled;
+    private final boolean jmx;
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram.Snapshot> lastSummary = new HashMap<>();
+    private volatile SlowQueryLog slowQueryLog;
+    private long logIntervalMillis;
+    private ScheduledExecutorService reporter;
+
+    public LatencyMetrics(boolean enabled, boolean jmx) {
+        this.enabled = enabled;
+        this.jmx = jmx;
+    }
+
+    /**
+     * Creates the metrics configured by the metrics.latency.* and
+     * metrics.slowQuery.* keys of app.properties, call {@link #start()} to run
+     * the summary and the slow query log.
+     */
+    public static LatencyMetrics fromConfig() {
+        LatencyMetrics metrics = new LatencyMetrics(
+                Boolean.parseBoolean(ConfigLoader.getProperty("metrics.latency.enabled", "true")),
+                Boolean.parseBoolean(ConfigLoader.getProperty("metrics.latency.jmx", "true")));
+        metrics.logIntervalMillis = ConfigLoader.getLongProperty("metrics.latency.logIntervalMillis", 60000);
+        metrics.setSlowQueryLog(SlowQueryLog.fromConfig());
+        return metrics;
+    }
+
+    /**
+     * Starts the configured summary and the thread of the slow query log.
+     */
+    public synchronized void start() {
+        startLogSummary(logIntervalMillis);
+        SlowQueryLog slowQueries = slowQueryLog;
+        if (slowQueries != null) {
+            slowQueries.start();
+        }
+    }
+
+    public Operation start(String name) {
+        SlowQueryLog slowQueries = slowQueryLog;
+        if (!enabled && slowQueries == null) {
+            return DISABLED;
+        }
+        return new Operation(name, enabled ? timers.computeIfAbsent(name, Timer::new) : null, slowQueries);
+    }
+
+    /**
+     * @param slowQueryLog the log of slow operations, null turns it off
+     */
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    /**
+     * @return the histograms by name, in name order
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    private LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> {
+            LatencyHistogram histogram = new LatencyHistogram(key);
+            if (jmx) {
+                register(histogram);
+            }
+            return histogram;
+        });
+    }
+
+    private static void register(LatencyHistogram histogram) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME + histogram.getName());
+            if (!server.isRegistered(name)) {
+                server.registerMBean(histogram, name);
+            }
+        } catch (Exception e) {
+            log.warn("register latency MXBean {} failed: {}", histogram.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Logs the summary every intervalMillis, 0 turns it off.
+     */
+    public synchronized void startLogSummary(long intervalMillis) {
+        if (intervalMillis <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "latency-summary");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::logSummary, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Logs a line per histogram that recorded something since the last summary.
+     */
+    public synchronized void logSummary() {
+        getHistograms().forEach((name, histogram) -> {
+            LatencyHistogram.Snapshot now = histogram.snapshot();
+            LatencyHistogram.Snapshot earlier = lastSummary.put(name, now);
+            LatencyHistogram.Snapshot interval = earlier == null ? now : now.minus(earlier);
+            if (interval.getCount() > 0) {
+                log.info("{}: count={} mean={}us p50={}us p99={}us p999={}us max={}us", name, interval.getCount(),
+                        format(interval.getMeanMicros()), format(interval.percentileMicros(0.5)),
+                        format(interval.percentileMicros(0.99)), format(interval.percentileMicros(0.999)),
+                        format(interval.percentileMicros(1)));
+            }
+        });
+    }
+
+    private static String format(double micros) {
+        return String.format("%.1f", micros);
+    }
+
+    /**
+     * Stops the summary and the slow query log and unregisters the MXBeans.
+     */
+    @Override
+    public synchronized void close() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        SlowQueryLog slowQueries = slowQueryLog;
+        if (slowQueries != null) {
+            slowQueries.close();
+        }
+        if (jmx) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (String name : histograms.keySet()) {
+                try {
+                    server.unregisterMBean(new ObjectName(OBJECT_NAME + name));
+                } catch (Exception e) {
+                    log.debug("unregister latency MXBean {} failed: {}", name, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * The histograms of one operation, looked up once per operation name.
+     */
+    private class Timer {
+        private final String name;
+        private final AtomicReferenceArray<LatencyHistogram> phases = new AtomicReferenceArray<>(
+                Phase.values().length);
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        void record(Phase phase, long nanos) {
+            LatencyHistogram histogram = phases.get(phase.ordinal());
+            if (histogram == null) {
+                histogram = histogram(name + "." + phase.label);
+                phases.set(phase.ordinal(), histogram);
+            }
+            histogram.record(nanos);
+        }
+    }
+
+    /**
+     * One timed call of an operation, used by one thread.
+     */
+    public static class Operation implements AutoCloseable {
+        private final String name;
+        private final Timer timer;
+        private final SlowQueryLog slowQueryLog;
+        private final long started;
+        private long last;
+        private long acquireNanos;
+        private long executeNanos;
+        private long mapNanos;
+        private String sql;
+        private UserDao.ParameterSetter parameters;
+        private long rows = -1;
+
+        private Operation(String name, Timer timer, SlowQueryLog slowQueryLog) {
+            this.name = name;
+            this.timer = timer;
+            this.slowQueryLog = slowQueryLog;
+            this.started = System.nanoTime();
+            this.last = started;
+        }
+
+        /**
+         * A connection was borrowed.
+         */
+        public void acquired() {
+            acquireNanos += mark(Phase.ACQUIRE);
+        }
+
+        /**
+         * A statement was executed.
+         */
+        public void executed() {
+            executeNanos += mark(Phase.EXECUTE);
+        }
+
+        /**
+         * Rows were mapped to users.
+         */
+        public void mapped() {
+            mapNanos += mark(Phase.MAP);
+        }
+
+        /**
+         * The statement being run, only read if the operation is slow. The
+         * parameters are bound again on this thread when a slow operation
+         * closes, before the DAO method returns; null if they are too many to
+         * log.
+         */
+        void statement(String sql, UserDao.ParameterSetter parameters) {
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+
+        /**
+         * Adds rows read or written, only read if the operation is slow.
+         */
+        void rows(long count) {
+            rows = rows < 0 ? count : rows + count;
+        }
+
+        /**
+         * @return the time since the previous phase
+         */
+        private long mark(Phase phase) {
+            long now = System.nanoTime();
+            long nanos = now - last;
+            if (timer != null) {
+                timer.record(phase, nanos);
+            }
+            last = now;
+            return nanos;
+        }
+
+        @Override
+        public void close() {
+            long total = System.nanoTime() - started;
+            if (timer != null) {
+                timer.record(Phase.TOTAL, total);
+            }
+            if (slowQueryLog != null && slowQueryLog.isSlow(total)) {
+                slowQueryLog.submit(new SlowQueryLog.SlowQuery(name, sql,
+                        parameters == null ? null : SlowQueryLog.capture(parameters), rows, total, acquireNanos,
+                        executeNanos, mapNanos));
+            }
+        }
+    }
+
+    /**
+     * Overrides every method that writes a field, so all threads can share
+     * it.
+     */
+    private static final class DisabledOperation extends Operation {
+        private DisabledOperation() {
+            super(null, null, null);
+        }
+
+        @Override
+        public void acquired() {
+        }
+
+        @Override
+        public void executed() {
+        }
+
+        @Override
+        public void mapped() {
+        }
+
+        @Override
+        void statement(String sql, UserDao.ParameterSetter parameters) {
+        }
+
+        @Override
+        void rows(long count) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.github.budwing.clean.ut;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded in-process cache with a time to live.
+ * 1. at most maxSize entries are kept, the victim is chosen by the eviction
+ * policy: least recently used (LRU) or least frequently used (LFU)
+ * 2. an entry older than ttlMillis is treated as missing
+ * 3. every invalidation moves a stamp forward, a value loaded before an
+ * invalidation can be rejected by {@link #putIfNotInvalidated}, so a slow
+ * reader cannot put back a value older than a write
+ * 4. optionally, keys are indexed by a property of their values, see
+ * {@link #indexBy(Function)}, so the entries of one property value can be
+ * invalidated without a scan
+ *
+ * All operations lock the whole cache, they only touch in-memory maps.
+ */
+public class LocalCache<K, V> {
+    public enum EvictionPolicy {
+        LRU, LFU
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final EvictionPolicy policy;
+    private final LongSupplier clock;
+
+    /**
+     * in access order, the first entry is the least recently used one
+     */
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * keys by use count, only maintained by LFU
+     */
+    private final TreeMap<Long, LinkedHashSet<K>> frequencies = new TreeMap<>();
+    /**
+     * keys by the index key of their values, only maintained with indexKey
+     */
+    private final Map<Object, LinkedHashSet<K>> index = new HashMap<>();
+    private Function<? super V, ?> indexKey;
+    private long stamp;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public LocalCache(int maxSize, long ttlMillis, EvictionPolicy policy) {
+        this(maxSize, ttlMillis, policy, System::nanoTime);
+    }
+
+    LocalCache(int maxSize, long ttlMillis, EvictionPolicy policy, LongSupplier clock) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.policy = policy;
+        this.clock = clock;
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (clock.getAsLong() - entry.createdAt >= ttlNanos) {
+            remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        if (policy == EvictionPolicy.LFU) {
+            touch(key, entry);
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        remove(key);
+        // evict before inserting, a new LFU entry would otherwise be its own victim
+        while (entries.size() >= maxSize) {
+            remove(victim());
+            evictions++;
+        }
+        Entry<V> entry = new Entry<>(value, clock.getAsLong());
+        entries.put(key, entry);
+        if (policy == EvictionPolicy.LFU) {
+            frequencies.computeIfAbsent(entry.frequency, f -> new LinkedHashSet<>()).add(key);
+        }
+        addToIndex(key, value);
+    }
+
+    /**
+     * Indexes the keys by indexKey of their values from now on, for
+     * {@link #invalidateIndexed(Object)}.
+     */
+    public synchronized void indexBy(Function<? super V, ?> indexKey) {
+        this.indexKey = indexKey;
+        index.clear();
+        entries.forEach((key, entry) -> addToIndex(key, entry.value));
+    }
+
+    /**
+     * Invalidates the entries whose values have the index key, in time
+     * proportional to their number.
+     */
+    public synchronized void invalidateIndexed(Object key) {
+        stamp++;
+        LinkedHashSet<K> keys = index.get(key);
+        if (keys != null) {
+            for (K indexed : new LinkedHashSet<>(keys)) {
+                remove(indexed);
+            }
+        }
+    }
+
+    /**
+     * The stamp to pass to {@link #putIfNotInvalidated} after loading a value.
+     */
+    public synchronized long stamp() {
+        return stamp;
+    }
+
+    /**
+     * Puts the value only if nothing was invalidated since the stamp was taken.
+     *
+     * @return whether the value was put
+     */
+    public synchronized boolean putIfNotInvalidated(K key, V value, long loadStamp) {
+        if (stamp != loadStamp) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    public synchronized void invalidate(K key) {
+        stamp++;
+        remove(key);
+    }
+
+    /**
+     * Invalidates the entry of the key only if it holds the value.
+     */
+    public synchronized void invalidate(K key, V value) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && Objects.equals(entry.value, value)) {
+            invalidate(key);
+        }
+    }
+
+    public synchronized void invalidateIf(BiPredicate<K, V> predicate) {
+        stamp++;
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, Entry<V>> entry = it.next();
+            if (predicate.test(entry.getKey(), entry.getValue().value)) {
+                it.remove();
+                forget(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        stamp++;
+        entries.clear();
+        frequencies.clear();
+        index.clear();
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(entries.size(), hits, misses, evictions, expirations);
+    }
+
+    private K victim() {
+        if (policy == EvictionPolicy.LFU) {
+            return frequencies.firstEntry().getValue().iterator().next();
+        }
+        return entries.keySet().iterator().next();
+    }
+
+    private void touch(K key, Entry<V> entry) {
+        forgetFrequency(key, entry);
+        entry.frequency++;
+        frequencies.computeIfAbsent(entry.frequency, f -> new LinkedHashSet<>()).add(key);
+    }
+
+    private void remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            forget(key, entry);
+        }
+    }
+
+    private void forget(K key, Entry<V> entry) {
+        removeFromIndex(key, entry.value);
+        forgetFrequency(key, entry);
+    }
+
+    private void forgetFrequency(K key, Entry<V> entry) {
+        if (policy != EvictionPolicy.LFU) {
+            return;
+        }
+        LinkedHashSet<K> keys = frequencies.get(entry.frequency);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            frequencies.remove(entry.frequency);
+        }
+    }
+
+    private void addToIndex(K key, V value) {
+        if (indexKey != null) {
+            index.computeIfAbsent(indexKey.apply(value), k -> new LinkedHashSet<>()).add(key);
+        }
+    }
+
+    private void removeFromIndex(K key, V value) {
+        if (indexKey == null) {
+            return;
+        }
+        Object valueKey = indexKey.apply(value);
+        LinkedHashSet<K> keys = index.get(valueKey);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                index.remove(valueKey);
+            }
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long createdAt;
+        private long frequency = 1;
+
+        Entry(V value, long createdAt) {
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+    }
+}
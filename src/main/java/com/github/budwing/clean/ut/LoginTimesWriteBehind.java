@@ -0,0 +1,228 @@
+package com.github.budwing.clean.ut;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.budwing.ConfigLoader;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Buffers login_times increments in memory and writes them behind.
+ * A busy account would otherwise update its row on every login, here all the
+ * logins of a user between two flushes become one "login_times=login_times+n"
+ * row of a batched update.
+ * 1. a flush runs every flushIntervalMillis, or as soon as flushSize users are
+ * pending, at most one such flush is queued on the timer thread
+ * 2. memory is bounded, when maxPendingUsers users are pending the login of a
+ * new user is dropped and counted, and a flush is started on the timer thread,
+ * the recording thread never waits for the database
+ * 3. a failed flush, or a failed batch of it, puts its increments back, they
+ * are retried by the next one
+ * 4. {@link #close()} flushes what is left, {@link #registerShutdownHook()}
+ * does it when the JVM exits, a login recorded after close is written at once
+ */
+@Slf4j
+public class LoginTimesWriteBehind implements AutoCloseable {
+    private final UserRepository userDao;
+    private final int flushSize;
+    private final int maxPendingUsers;
+    private final ScheduledExecutorService scheduler;
+
+    private final ConcurrentHashMap<String, Integer> pending = new ConcurrentHashMap<>();
+    /**
+     * set while a flush started by {@link #flushLater()} is queued
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /**
+     * nanoTime of the oldest pending increment, 0 if nothing is pending
+     */
+    private final AtomicLong oldestPendingAt = new AtomicLong();
+    private final LongAdder recordedLogins = new LongAdder();
+    private final LongAdder flushedRows = new LongAdder();
+    private final LongAdder droppedLogins = new LongAdder();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+    private volatile int lastFlushSize;
+    private volatile boolean closed;
+
+    public LoginTimesWriteBehind(UserRepository userDao, int flushSize, int maxPendingUsers, long flushIntervalMillis) {
+        this(userDao, flushSize, maxPendingUsers, flushIntervalMillis,
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "login-times-write-behind");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+    }
+
+    LoginTimesWriteBehind(UserRepository userDao, int flushSize, int maxPendingUsers, long flushIntervalMillis,
+            ScheduledExecutorService scheduler) {
+        this.userDao = userDao;
+        this.flushSize = flushSize;
+        this.maxPendingUsers = Math.max(maxPendingUsers, flushSize);
+        this.scheduler = scheduler;
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a buffer configured by the writeBehind.loginTimes.* keys of
+     * app.properties.
+     */
+    public static LoginTimesWriteBehind fromConfig(UserRepository userDao) {
+        return new LoginTimesWriteBehind(userDao,
+                ConfigLoader.getIntProperty("writeBehind.loginTimes.flushSize", 500),
+                ConfigLoader.getIntProperty("writeBehind.loginTimes.maxPendingUsers", 10000),
+                ConfigLoader.getLongProperty("writeBehind.loginTimes.flushIntervalMillis", 1000));
+    }
+
+    public void registerShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "login-times-write-behind-shutdown"));
+    }
+
+    /**
+     * Records one login of the user.
+     */
+    public void increment(String userId) {
+        if (!closed && pending.size() >= maxPendingUsers && !pending.containsKey(userId)) {
+            droppedLogins.increment();
+            log.warn("{} users pending, drop login of user {}", pending.size(), userId);
+            flushLater();
+            return;
+        }
+        oldestPendingAt.compareAndSet(0, System.nanoTime());
+        pending.merge(userId, 1, Integer::sum);
+        recordedLogins.increment();
+        if (closed) {
+            flushQuietly();
+        } else if (pending.size() >= flushSize) {
+            flushLater();
+        }
+    }
+
+    /**
+     * Queues a flush unless one is queued already.
+     */
+    private void flushLater() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.execute(this::scheduledFlush);
+        } catch (RejectedExecutionException e) {
+            // closed in the meantime
+            flushScheduled.set(false);
+            flushQuietly();
+        }
+    }
+
+    /**
+     * Clears flushScheduled before flushing, so a login during the flush can
+     * queue the next one. Users that became pending while it was being
+     * cleared are flushed again if the flush made progress, a failing
+     * database is left to the timer.
+     */
+    private void scheduledFlush() {
+        flushScheduled.set(false);
+        try {
+            if (flush() > 0 && pending.size() >= flushSize) {
+                flushLater();
+            }
+        } catch (RuntimeException e) {
+            log.error("flush login times failed, retry later:", e);
+        }
+    }
+
+    /**
+     * Writes all pending increments in one batched update. The increments of
+     * a failed batch are put back.
+     *
+     * @return the number of users written
+     */
+    public synchronized int flush() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        oldestPendingAt.set(0);
+        Map<String, Integer> increments = new LinkedHashMap<>();
+        for (String userId : pending.keySet()) {
+            Integer count = pending.remove(userId);
+            if (count != null) {
+                increments.put(userId, count);
+            }
+        }
+        List<BatchOutcome> outcomes;
+        try {
+            outcomes = userDao.incrementLoginTimes(increments);
+        } catch (RuntimeException e) {
+            putBack(increments);
+            failedFlushes.incrementAndGet();
+            throw e;
+        }
+        // the outcomes are in the iteration order of increments
+        List<Map.Entry<String, Integer>> rows = new ArrayList<>(increments.entrySet());
+        Map<String, Integer> failed = new LinkedHashMap<>();
+        for (int i = 0; i < outcomes.size(); i++) {
+            if (outcomes.get(i) == BatchOutcome.FAILED) {
+                failed.put(rows.get(i).getKey(), rows.get(i).getValue());
+            }
+        }
+        int written = increments.size() - failed.size();
+        if (failed.isEmpty()) {
+            flushes.incrementAndGet();
+        } else {
+            putBack(failed);
+            failedFlushes.incrementAndGet();
+            log.warn("flush login times of {} users failed, retry later", failed.size());
+        }
+        flushedRows.add(written);
+        lastFlushSize = written;
+        log.debug("flushed login times of {} users", written);
+        return written;
+    }
+
+    private void putBack(Map<String, Integer> increments) {
+        oldestPendingAt.compareAndSet(0, System.nanoTime());
+        increments.forEach((userId, count) -> pending.merge(userId, count, Integer::sum));
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("flush login times failed, retry later:", e);
+        }
+    }
+
+    public WriteBehindStats getStats() {
+        long oldest = oldestPendingAt.get();
+        long lagMillis = oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+        return new WriteBehindStats(pending.size(), lagMillis, flushes.get(), failedFlushes.get(), lastFlushSize,
+                recordedLogins.sum(), flushedRows.sum(), droppedLogins.sum());
+    }
+
+    /**
+     * Stops the timer and flushes the pending increments.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+}
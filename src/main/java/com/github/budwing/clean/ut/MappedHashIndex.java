@@ -0,0 +1,189 @@
+package com.github.budwing.clean.ut;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An open-addressing hash table from a string key to a file offset, kept in a
+ * memory-mapped file. A lookup only reads the mapped memory, no system call.
+ * 1. a slot is 16 bytes: the 64-bit hash of the key and the offset of the
+ * record holding the key, a slot with hash 0 is empty
+ * 2. the key itself is not stored, a slot whose hash matches is confirmed by
+ * reading the key of its record through the {@link KeyReader}
+ * 3. collisions are resolved by linear probing, a removed key leaves a
+ * tombstone so the probe chains stay intact
+ * 4. when 70% of its slots are used the table is rehashed, rehashing only
+ * needs the stored hashes. It doubles, unless less than half of its slots
+ * hold a key, then it keeps its capacity
+ *
+ * Not thread-safe, {@link UserFileStore} guards it by its lock.
+ */
+final class MappedHashIndex implements AutoCloseable {
+    static final long NOT_FOUND = -1;
+    private static final long TOMBSTONE = -1;
+    private static final int SLOT_BYTES = 16;
+    private static final double MAX_LOAD = 0.7;
+
+    @FunctionalInterface
+    interface KeyReader {
+        String keyAt(long offset);
+    }
+
+    private final KeyReader keyReader;
+    private Path path;
+    private FileChannel channel;
+    private MappedByteBuffer slots;
+    private int capacity;
+    /**
+     * slots holding a key or a tombstone
+     */
+    private int used;
+    /**
+     * slots holding a key
+     */
+    private int live;
+
+    /**
+     * Creates an empty index, an existing file at the path is replaced.
+     */
+    MappedHashIndex(Path path, int initialCapacity, KeyReader keyReader) throws IOException {
+        this.path = path;
+        this.keyReader = keyReader;
+        this.capacity = Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1;
+        this.channel = open(path);
+        this.slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT_BYTES);
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    static long hash(String key) {
+        // 64-bit FNV-1a, 0 marks an empty slot
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * @return the offset of the key, or NOT_FOUND
+     */
+    long get(String key) {
+        int slot = find(key, hash(key));
+        return slot < 0 ? NOT_FOUND : offsetAt(slot);
+    }
+
+    void put(String key, long offset) throws IOException {
+        long hash = hash(key);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            slots.putLong(slot * SLOT_BYTES + 8, offset);
+            return;
+        }
+        if (used + 1 > capacity * MAX_LOAD) {
+            grow();
+        }
+        insert(hash, offset);
+        live++;
+    }
+
+    /**
+     * @return the offset the key had, or NOT_FOUND
+     */
+    long remove(String key) {
+        int slot = find(key, hash(key));
+        if (slot < 0) {
+            return NOT_FOUND;
+        }
+        long offset = offsetAt(slot);
+        slots.putLong(slot * SLOT_BYTES + 8, TOMBSTONE);
+        live--;
+        return offset;
+    }
+
+    private int find(String key, long hash) {
+        int mask = capacity - 1;
+        for (int slot = start(hash, mask);; slot = (slot + 1) & mask) {
+            long slotHash = hashAt(slot);
+            if (slotHash == 0) {
+                return -1;
+            }
+            long offset = offsetAt(slot);
+            if (slotHash == hash && offset != TOMBSTONE && key.equals(keyReader.keyAt(offset))) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(long hash, long offset) {
+        int mask = capacity - 1;
+        int slot = start(hash, mask);
+        while (hashAt(slot) != 0 && offsetAt(slot) != TOMBSTONE) {
+            slot = (slot + 1) & mask;
+        }
+        if (hashAt(slot) == 0) {
+            used++;
+        }
+        slots.putLong(slot * SLOT_BYTES, hash);
+        slots.putLong(slot * SLOT_BYTES + 8, offset);
+    }
+
+    private static int start(long hash, int mask) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private long hashAt(int slot) {
+        return slots.getLong(slot * SLOT_BYTES);
+    }
+
+    private long offsetAt(int slot) {
+        return slots.getLong(slot * SLOT_BYTES + 8);
+    }
+
+    /**
+     * Rehashes the live slots into a new file, tombstones are dropped. The file
+     * has the same capacity if less than half of it is live, so removes and
+     * puts of new keys don't grow it forever, otherwise twice the capacity.
+     */
+    private void grow() throws IOException {
+        int oldCapacity = capacity;
+        MappedByteBuffer oldSlots = slots;
+        FileChannel oldChannel = channel;
+        Path tmp = path.resolveSibling(path.getFileName() + ".grow");
+        capacity = live < oldCapacity / 2 ? oldCapacity : oldCapacity * 2;
+        channel = open(tmp);
+        slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT_BYTES);
+        used = 0;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long hash = oldSlots.getLong(slot * SLOT_BYTES);
+            long offset = oldSlots.getLong(slot * SLOT_BYTES + 8);
+            if (hash != 0 && offset != TOMBSTONE) {
+                insert(hash, offset);
+            }
+        }
+        oldChannel.close();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Renames the index file, the mapping stays valid.
+     */
+    void moveTo(Path target) throws IOException {
+        Files.move(path, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        path = target;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
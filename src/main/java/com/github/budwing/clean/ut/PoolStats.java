@@ -0,0 +1,29 @@
+package com.github.budwing.clean.ut;
+
+import lombok.Value;
+
+/**
+ * A point-in-time snapshot of {@link ConnectionPool} metrics.
+ */
+@Value
+public class PoolStats {
+    /**
+     * physical connections currently open, idle or borrowed
+     */
+    int total;
+    int idle;
+    int active;
+    /**
+     * threads currently waiting for a free connection
+     */
+    int waiting;
+    long created;
+    long borrowed;
+    long timeouts;
+    long validationFailures;
+    /**
+     * prepared statements reused from the per-connection statement cache
+     */
+    long statementCacheHits;
+    long statementCacheMisses;
+}
@@ -0,0 +1,122 @@
+package com.github.budwing.clean.ut;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A connection borrowed from {@link ConnectionPool}.
+ * Closing it gives the physical connection back to the pool instead of
+ * closing it, so it should always be used in a try-with-resources block.
+ *
+ * Prepared statements are cached per physical connection, so a SQL string is
+ * parsed only once for the life of the connection. A borrower is the only user
+ * of the connection, the cache needs no locking. With a statementCacheSize of
+ * 0 nothing is cached, the statements are closed when the connection is
+ * returned.
+ */
+@Slf4j
+public class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final int statementCacheSize;
+    private final Map<String, PreparedStatement> statements;
+    private final List<PreparedStatement> uncached = new ArrayList<>();
+    private volatile long lastUsedAt;
+    private volatile boolean borrowed;
+
+    PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        this.statementCacheSize = statementCacheSize;
+        this.lastUsedAt = System.currentTimeMillis();
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the cached statement of the sql, or prepares and caches a new one.
+     * The statement is owned by the cache, the caller must not close it but
+     * should close the result sets it opens.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps != null && !ps.isClosed()) {
+            pool.recordStatementCacheHit();
+            ps.clearParameters();
+            return ps;
+        }
+        pool.recordStatementCacheMiss();
+        ps = connection.prepareStatement(sql);
+        if (statementCacheSize == 0) {
+            uncached.add(ps);
+        } else {
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    long getLastUsedAt() {
+        return lastUsedAt;
+    }
+
+    void markBorrowed() {
+        borrowed = true;
+    }
+
+    void closeStatements() {
+        statements.values().forEach(PooledConnection::closeQuietly);
+        statements.clear();
+        closeUncached();
+    }
+
+    private void closeUncached() {
+        uncached.forEach(PooledConnection::closeQuietly);
+        uncached.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            log.debug("close statement error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the connection to the pool.
+     * Closing twice is harmless, the second call does nothing.
+     */
+    @Override
+    public void close() {
+        if (!borrowed) {
+            return;
+        }
+        borrowed = false;
+        closeUncached();
+        lastUsedAt = System.currentTimeMillis();
+        pool.release(this);
+    }
+}
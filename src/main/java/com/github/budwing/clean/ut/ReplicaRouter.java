@@ -0,0 +1,126 @@
+package com.github.budwing.clean.ut;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spreads reads over the connection pools of the replicas.
+ * 1. replicas are picked round-robin
+ * 2. a replica that fails to give a connection, or whose query fails, see
+ * {@link #failed(PooledConnection, SQLException)}, is ejected for ejectMillis,
+ * after that it gets another chance
+ * 3. a replica whose pool has no free connection is skipped at once, not
+ * waited for and not ejected
+ * 4. if no replica can serve, {@link #borrow()} returns null and the caller
+ * reads from the primary
+ */
+@Slf4j
+public class ReplicaRouter implements AutoCloseable {
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long ejectMillis;
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder ejections = new LongAdder();
+
+    public ReplicaRouter(List<ConnectionPool> pools, long ejectMillis) {
+        for (int i = 0; i < pools.size(); i++) {
+            replicas.add(new Replica("replica-" + i, pools.get(i)));
+        }
+        this.ejectMillis = ejectMillis;
+    }
+
+    /**
+     * Creates a pool per replica url, see {@link ConnectionPool#fromConfig}.
+     */
+    public static ReplicaRouter fromUrls(List<String> urls, Function<String, ConnectionFactory> factories,
+            long ejectMillis) {
+        List<ConnectionPool> pools = new ArrayList<>();
+        for (String url : urls) {
+            pools.add(ConnectionPool.fromConfig(factories.apply(url)));
+        }
+        return new ReplicaRouter(pools, ejectMillis);
+    }
+
+    /**
+     * Never waits for a busy replica.
+     *
+     * @return a connection of a healthy replica, or null if there is none
+     */
+    public PooledConnection borrow() {
+        int size = replicas.size();
+        if (size == 0) {
+            return null;
+        }
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((start + i) % size);
+            if (replica.ejectedUntil > now) {
+                continue;
+            }
+            try {
+                return replica.pool.borrow(0);
+            } catch (SQLTimeoutException e) {
+                log.debug("{} is busy: {}", replica.name, e.getMessage());
+            } catch (SQLException e) {
+                eject(replica, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reports that a query on a connection of {@link #borrow()} failed. The
+     * replica is ejected, unless the error is about the statement or its data
+     * rather than the replica, e.g. a syntax error.
+     */
+    public void failed(PooledConnection conn, SQLException e) {
+        if (e instanceof SQLNonTransientException && !(e instanceof SQLNonTransientConnectionException)) {
+            return;
+        }
+        for (Replica replica : replicas) {
+            if (replica.pool == conn.getPool()) {
+                eject(replica, e);
+            }
+        }
+    }
+
+    private void eject(Replica replica, SQLException e) {
+        replica.ejectedUntil = System.currentTimeMillis() + ejectMillis;
+        ejections.increment();
+        log.warn("{} ejected for {}ms: {}", replica.name, ejectMillis, e.getMessage());
+    }
+
+    public int getHealthyReplicas() {
+        long now = System.currentTimeMillis();
+        return (int) replicas.stream().filter(replica -> replica.ejectedUntil <= now).count();
+    }
+
+    public long getEjections() {
+        return ejections.sum();
+    }
+
+    @Override
+    public void close() {
+        replicas.forEach(replica -> replica.pool.close());
+    }
+
+    private static class Replica {
+        private final String name;
+        private final ConnectionPool pool;
+        private volatile long ejectedUntil;
+
+        Replica(String name, ConnectionPool pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+    }
+}
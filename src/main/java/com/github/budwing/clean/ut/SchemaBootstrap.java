@@ -0,0 +1,287 @@
+package com.github.budwing.clean.ut;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.github.budwing.ConfigLoader;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates and checks the users table the {@link UserDao} queries.
+ * 1. schema.sql on the classpath has the table and its indexes, the table is
+ * created if it doesn't exist and so is every index not found
+ * 2. the indexes are looked up in information_schema.statistics, a missing
+ * index or one on other columns is logged as a warning
+ * 3. every DAO query by user_name, user_id or created_at is run with EXPLAIN,
+ * a full table scan is logged as a warning
+ *
+ * An existing index is never changed or dropped. On a nearly empty table the
+ * optimizer may prefer a scan, the plans are only meaningful with real data.
+ */
+@Slf4j
+public class SchemaBootstrap {
+    static final String SCHEMA_RESOURCE = "schema.sql";
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "create\\s+(unique\\s+)?index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+    private static final String SELECT_INDEX_COLUMNS = "select index_name, column_name from information_schema.statistics"
+            + " where table_schema=database() and table_name=? order by index_name, seq_in_index";
+    private static final String FULL_SCAN = "ALL";
+
+    private final ConnectionPool connectionPool;
+    private final List<String> tables = new ArrayList<>();
+    private final Map<String, IndexDefinition> indexes = new LinkedHashMap<>();
+    private final List<CheckedQuery> queries = checkedQueries();
+
+    /**
+     * @param schema the DDL, statements end with ";" and lines starting with
+     *               "--" are comments
+     */
+    public SchemaBootstrap(ConnectionPool connectionPool, String schema) {
+        this.connectionPool = connectionPool;
+        for (String statement : split(schema)) {
+            Matcher matcher = CREATE_INDEX.matcher(statement);
+            if (matcher.matches()) {
+                IndexDefinition index = new IndexDefinition(matcher.group(2), matcher.group(3),
+                        Arrays.stream(matcher.group(4).split(",")).map(column -> column.trim().toLowerCase(Locale.ROOT))
+                                .collect(Collectors.toList()),
+                        statement);
+                indexes.put(index.name.toLowerCase(Locale.ROOT), index);
+            } else {
+                tables.add(statement);
+            }
+        }
+    }
+
+    /**
+     * Runs the bootstrap configured by the schema.bootstrap.* keys of
+     * app.properties on the primary of the dao, or on every shard of a
+     * {@link ShardedUserDao}. Replicas get the DDL by replication, backends
+     * other than MySQL have no schema.
+     */
+    public static void bootstrap(UserRepository repository) {
+        if (repository instanceof ShardedUserDao) {
+            ((ShardedUserDao) repository).getShards().forEach(SchemaBootstrap::bootstrap);
+            return;
+        }
+        if (!(repository instanceof UserDao)) {
+            return;
+        }
+        UserDao userDao = (UserDao) repository;
+        SchemaBootstrap bootstrap = new SchemaBootstrap(userDao.getConnectionPool(), loadSchema());
+        if (Boolean.parseBoolean(ConfigLoader.getProperty("schema.bootstrap.create", "false"))) {
+            bootstrap.createSchema();
+        }
+        bootstrap.verifyIndexes();
+        if (Boolean.parseBoolean(ConfigLoader.getProperty("schema.bootstrap.explain", "true"))) {
+            bootstrap.checkQueryPlans();
+        }
+    }
+
+    public static String loadSchema() {
+        try (InputStream in = SchemaBootstrap.class.getClassLoader().getResourceAsStream(SCHEMA_RESOURCE)) {
+            if (in == null) {
+                throw new IllegalStateException(SCHEMA_RESOURCE + " not found on the classpath");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.error("read schema failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<String> split(String schema) {
+        String withoutComments = Arrays.stream(schema.split("\\R"))
+                .filter(line -> !line.trim().startsWith("--"))
+                .collect(Collectors.joining("\n"));
+        return Arrays.stream(withoutComments.split(";")).map(String::trim).filter(statement -> !statement.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Creates the tables if they don't exist, then the indexes not found.
+     */
+    public void createSchema() {
+        try (PooledConnection conn = connectionPool.borrow();
+                Statement statement = conn.getConnection().createStatement()) {
+            for (String table : tables) {
+                statement.execute(table);
+            }
+            Map<String, List<String>> existing = existingIndexes(conn.getConnection());
+            for (IndexDefinition index : indexes.values()) {
+                if (!existing.containsKey(index.name.toLowerCase(Locale.ROOT))) {
+                    log.info("create index {} on {}", index.name, index.table);
+                    statement.execute(index.ddl);
+                }
+            }
+        } catch (Exception e) {
+            log.error("create schema failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the names of the indexes that are missing or on other columns
+     */
+    public List<String> verifyIndexes() {
+        List<String> problems = new ArrayList<>();
+        try (PooledConnection conn = connectionPool.borrow()) {
+            Map<String, List<String>> existing = existingIndexes(conn.getConnection());
+            for (IndexDefinition index : indexes.values()) {
+                List<String> columns = existing.get(index.name.toLowerCase(Locale.ROOT));
+                if (columns == null) {
+                    log.warn("index {} on {}{} is missing", index.name, index.table, index.columns);
+                    problems.add(index.name);
+                } else if (!columns.equals(index.columns)) {
+                    log.warn("index {} is on {}, expected {}", index.name, columns, index.columns);
+                    problems.add(index.name);
+                }
+            }
+        } catch (Exception e) {
+            log.error("verify indexes failed:", e);
+            throw new RuntimeException(e);
+        }
+        return problems;
+    }
+
+    /**
+     * @return the index names of all the tables of the indexes, in lower case,
+     *         with their columns in index order
+     */
+    private Map<String, List<String>> existingIndexes(Connection connection) throws SQLException {
+        Map<String, List<String>> existing = new LinkedHashMap<>();
+        for (String table : indexes.values().stream().map(index -> index.table).distinct()
+                .collect(Collectors.toList())) {
+            try (PreparedStatement ps = connection.prepareStatement(SELECT_INDEX_COLUMNS)) {
+                ps.setString(1, table);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        existing.computeIfAbsent(rs.getString(1).toLowerCase(Locale.ROOT), name -> new ArrayList<>())
+                                .add(rs.getString(2).toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * @return the names of the queries whose plan scans the table
+     */
+    public List<String> checkQueryPlans() {
+        List<String> problems = new ArrayList<>();
+        try (PooledConnection conn = connectionPool.borrow()) {
+            for (CheckedQuery query : queries) {
+                if (!planIsFine(conn.getConnection(), query)) {
+                    problems.add(query.name);
+                }
+            }
+        } catch (Exception e) {
+            log.error("check query plans failed:", e);
+            throw new RuntimeException(e);
+        }
+        return problems;
+    }
+
+    private boolean planIsFine(Connection connection, CheckedQuery query) throws SQLException {
+        boolean fine = true;
+        // not from the statement cache, the plans are only read once
+        try (PreparedStatement ps = connection.prepareStatement("explain " + query.sql)) {
+            query.parameters.set(ps);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String type = rs.getString("type");
+                    if (FULL_SCAN.equalsIgnoreCase(type)) {
+                        log.warn("{} does a full scan of {}, sql: {}", query.name, rs.getString("table"), query.sql);
+                        fine = false;
+                    } else {
+                        log.debug("{} uses {} ({})", query.name, rs.getString("key"), type);
+                    }
+                }
+            }
+        }
+        return fine;
+    }
+
+    /**
+     * The DAO queries that should use an index, with parameters of the right
+     * types.
+     */
+    private static List<CheckedQuery> checkedQueries() {
+        String name = "bootstrap";
+        // the length of a hex SHA-256
+        String hash = "0".repeat(64);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<CheckedQuery> queries = new ArrayList<>();
+        queries.add(new CheckedQuery("UserDao.selectCredentialsBy", UserDao.SELECT_CREDENTIALS_BY_NAME,
+                ps -> ps.setString(1, name)));
+        queries.add(new CheckedQuery("UserDao.selectBy", UserDao.SELECT_BY_NAME_AND_PASSWORD, ps -> {
+            ps.setString(1, name);
+            ps.setString(2, hash);
+        }));
+        queries.add(new CheckedQuery("UserDao.selectById", UserDao.SELECT_BY_ID, ps -> ps.setString(1, name)));
+        queries.add(new CheckedQuery("UserDao.debitBy", UserDao.DEBIT_BY_NAME_AND_PASSWORD, ps -> {
+            ps.setDouble(1, 0);
+            ps.setString(2, name);
+            ps.setString(3, hash);
+            ps.setDouble(4, 0);
+        }));
+        queries.add(new CheckedQuery("UserDao.deleteBy", UserDao.DELETE_BY_NAME_AND_PASSWORD, ps -> {
+            ps.setString(1, name);
+            ps.setString(2, hash);
+        }));
+        queries.add(new CheckedQuery("UserDao.selectPage", UserDao.SELECT_PAGE, ps -> {
+            ps.setString(1, name);
+            ps.setInt(2, 100);
+        }));
+        queries.add(new CheckedQuery("UserDao.selectPageByCreatedAt", UserDao.SELECT_PAGE_BY_CREATED_AT, ps -> {
+            ps.setTimestamp(1, now);
+            ps.setTimestamp(2, now);
+            ps.setString(3, name);
+            ps.setInt(4, 100);
+        }));
+        return queries;
+    }
+
+    private static class IndexDefinition {
+        private final String name;
+        private final String table;
+        private final List<String> columns;
+        private final String ddl;
+
+        IndexDefinition(String name, String table, List<String> columns, String ddl) {
+            this.name = name;
+            this.table = table;
+            this.columns = columns;
+            this.ddl = ddl;
+        }
+    }
+
+    private static class CheckedQuery {
+        private final String name;
+        private final String sql;
+        private final UserDao.ParameterSetter parameters;
+
+        CheckedQuery(String name, String sql, UserDao.ParameterSetter parameters) {
+            this.name = name;
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package com.github.budwing.clean.ut;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.github.budwing.ConfigLoader;
+import com.github.budwing.User;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A {@link UserRepository} spreading the users over several databases, the
+ * shards.
+ * 1. a user lives on the shard picked by a 64-bit FNV-1a hash of its user_id,
+ * modulo the number of shards, so a lookup or write by user_id goes to one
+ * shard
+ * 2. selectBy, selectCredentialsBy, debitBy and deleteBy only know the
+ * user_name, they all run on the shard holding the name, see
+ * {@link #byName}: the one in a cache of user_name to shard filled by inserts
+ * and found users, else the one a parallel read of the credentials on all
+ * shards finds. The result of that shard is final, a wrong password is never
+ * retried on the other shards
+ * 3. selectByIds, insertAll and incrementLoginTimes group the rows by shard
+ * and run one call per shard in parallel
+ * 4. pages are read from every shard in parallel and merged, scan streams all
+ * shards in parallel into one sequential stream
+ * 5. a unique key only keeps user_name unique per shard, so inserts and
+ * upserts reserve the name in this instance and read its credentials on the
+ * other shards before writing, a name found there fails the write like a
+ * duplicate key of its own shard. A batch does one read per row on each
+ * shard
+ *
+ * The number of shards must not change while there are users, moving users
+ * between shards is not supported. The reservation is in memory: two
+ * instances writing one new name to two shards at the same time can both
+ * succeed, only one ShardedUserDao may write to the shards.
+ * Each shard has its own connection pool, see {@link #getShards()}.
+ */
+@Slf4j
+public class ShardedUserDao implements UserRepository, AutoCloseable {
+    private static final Comparator<User> BY_USER_ID = Comparator.comparing(User::getUserId);
+    private static final Comparator<User> BY_CREATED_AT = Comparator.comparing(User::getCreatedAt)
+            .thenComparing(User::getUserId);
+    private static final Object END_OF_SHARD = new Object();
+
+    private final List<UserRepository> shards;
+    private final LocalCache<String, Integer> shardsByName;
+    private final ConcurrentHashMap<String, NameReservation> reservedNames = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final int scanQueueSize;
+
+    /**
+     * @param shards        the shards, in a fixed order
+     * @param shardsByName  the cache of user_name to the index of its shard
+     * @param scanQueueSize users buffered by {@link #scan()} ahead of the
+     *                      reader
+     */
+    public ShardedUserDao(List<UserRepository> shards, LocalCache<String, Integer> shardsByName, int scanQueueSize) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("no shard");
+        }
+        this.shards = new ArrayList<>(shards);
+        this.shardsByName = shardsByName;
+        this.scanQueueSize = scanQueueSize;
+        AtomicInteger counter = new AtomicInteger();
+        // cached, not fixed: scans hold a thread per shard for their lifetime
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "user-shard-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a JDBC {@link UserDao} per url of jdbc.shard.urls, the other
+     * settings come from the jdbc.shard.* keys of app.properties.
+     */
+    public static ShardedUserDao fromConfig() {
+        List<UserRepository> shards = new ArrayList<>();
+        for (String url : ConfigLoader.getProperty("jdbc.shard.urls", "").split(",")) {
+            if (!url.trim().isEmpty()) {
+                UserDao shard = new UserDao();
+                shard.setUrl(url.trim());
+                shard.setReplicaUrls(List.of());
+                shards.add(shard);
+            }
+        }
+        return new ShardedUserDao(shards, new LocalCache<>(
+                ConfigLoader.getIntProperty("jdbc.shard.nameCacheSize", 100000),
+                ConfigLoader.getLongProperty("jdbc.shard.nameCacheTtlMillis", 3600000),
+                LocalCache.EvictionPolicy.LRU), ConfigLoader.getIntProperty("jdbc.shard.scanQueueSize", 1000));
+    }
+
+    public List<UserRepository> getShards() {
+        return new ArrayList<>(shards);
+    }
+
+    int shardOf(String userId) {
+        return (int) Math.floorMod(MappedHashIndex.hash(userId), (long) shards.size());
+    }
+
+    private UserRepository shardFor(String userId) {
+        return shards.get(shardOf(userId));
+    }
+
+    @Override
+    public User selectById(String userId) {
+        return shardFor(userId).selectById(userId);
+    }
+
+    @Override
+    public Map<String, User> selectByIds(Collection<String> userIds) {
+        Map<String, User> users = new LinkedHashMap<>();
+        userIds.forEach(id -> users.put(id, null));
+        Map<Integer, List<String>> idsByShard = users.keySet().stream()
+                .collect(Collectors.groupingBy(this::shardOf, Collectors.toList()));
+        List<Map<String, User>> found = fanOut(idsByShard.keySet(),
+                shard -> shards.get(shard).selectByIds(idsByShard.get(shard)));
+        found.forEach(users::putAll);
+        return users;
+    }
+
+    @Override
+    public User selectBy(String username, String password) {
+        return byName(username, shard -> shard.selectBy(username, password), null);
+    }
+
+    @Override
+    public UserCredentials selectCredentialsBy(String username) {
+        return byName(username, shard -> shard.selectCredentialsBy(username), null);
+    }
+
+    @Override
+    public boolean debitBy(String username, String password, double amount) {
+        return byName(username, shard -> shard.debitBy(username, password, amount), false);
+    }
+
+    @Override
+    public boolean deleteBy(String username, String password) {
+        boolean deleted = byName(username, shard -> shard.deleteBy(username, password), false);
+        if (deleted) {
+            shardsByName.invalidate(username);
+        }
+        return deleted;
+    }
+
+    /**
+     * Runs the call on the shard holding the name. A miss on the cached shard
+     * is final if the name is still there, e.g. a wrong password, otherwise the
+     * cached shard is stale and the name is looked up on all shards.
+     *
+     * @param miss the result of the call if the shard has no such user
+     * @return miss if no shard has the name
+     */
+    private <T> T byName(String username, Function<UserRepository, T> call, T miss) {
+        Integer cached = shardsByName.get(username);
+        if (cached != null && cached < shards.size()) {
+            UserRepository shard = shards.get(cached);
+            T result = call.apply(shard);
+            if (!Objects.equals(result, miss) || shard.selectCredentialsBy(username) != null) {
+                return result;
+            }
+            shardsByName.invalidate(username);
+        }
+        Integer found = findShardOfName(username);
+        return found == null ? miss : call.apply(shards.get(found));
+    }
+
+    /**
+     * Reads the credentials of the name on all shards in parallel and caches
+     * the shard that has them.
+     *
+     * @return null if no shard has the name
+     */
+    private Integer findShardOfName(String username) {
+        long stamp = shardsByName.stamp();
+        List<Integer> all = allShards();
+        List<UserCredentials> found = fanOut(all, shard -> shards.get(shard).selectCredentialsBy(username));
+        for (int i = 0; i < all.size(); i++) {
+            if (found.get(i) != null) {
+                shardsByName.putIfNotInvalidated(username, all.get(i), stamp);
+                return all.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<User> selectPage(String afterUserId, int limit) {
+        return mergePages(fanOut(allShards(), shard -> shards.get(shard).selectPage(afterUserId, limit)),
+                BY_USER_ID, limit);
+    }
+
+    @Override
+    public List<User> selectPageByCreatedAt(Date afterCreatedAt, String afterUserId, int limit) {
+        return mergePages(fanOut(allShards(),
+                shard -> shards.get(shard).selectPageByCreatedAt(afterCreatedAt, afterUserId, limit)),
+                BY_CREATED_AT, limit);
+    }
+
+    /**
+     * Every shard returned its first limit users after the position, so the
+     * first limit of all of them are the first limit overall.
+     */
+    private static List<User> mergePages(List<List<User>> pages, Comparator<User> order, int limit) {
+        return pages.stream().flatMap(List::stream).sorted(order).limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Streams the users of all shards, a thread per shard reads ahead into a
+     * queue of scanQueueSize users. The order is not defined. Close the stream
+     * to release the shard connections.
+     */
+    @Override
+    public Stream<User> scan() {
+        FanOutSpliterator spliterator = new FanOutSpliterator();
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    @Override
+    public boolean insert(User user) {
+        int shard = shardOf(user.getUserId());
+        boolean reserved = reserve(user);
+        try {
+            if (!reserved || namesTakenElsewhere(List.of(user))[0]) {
+                throw UserRows.duplicateKey("user_name", user.getUsername());
+            }
+            boolean inserted = shards.get(shard).insert(user);
+            if (inserted) {
+                shardsByName.put(user.getUsername(), shard);
+            }
+            return inserted;
+        } finally {
+            if (reserved) {
+                release(user);
+            }
+        }
+    }
+
+    @Override
+    public List<BatchOutcome> insertAll(Collection<User> users) {
+        return writeGrouped(new ArrayList<>(users), UserRepository::insertAll, user -> BatchOutcome.FAILED);
+    }
+
+    @Override
+    public List<BatchOutcome> insertAllHashed(Collection<User> users) {
+        return writeGrouped(new ArrayList<>(users), UserRepository::insertAllHashed, user -> BatchOutcome.FAILED);
+    }
+
+    /**
+     * Like the JDBC upsert, a user_name of a user on another shard changes
+     * nothing for a new user and fails for an existing one.
+     */
+    @Override
+    public boolean upsert(User user) {
+        int shard = shardOf(user.getUserId());
+        boolean reserved = reserve(user);
+        try {
+            if (!reserved || namesTakenElsewhere(List.of(user))[0]) {
+                if (upsertOfTakenName(user) == BatchOutcome.NO_CHANGE) {
+                    return false;
+                }
+                throw UserRows.duplicateKey("user_name", user.getUsername());
+            }
+            boolean written = shards.get(shard).upsert(user);
+            if (written) {
+                shardsByName.put(user.getUsername(), shard);
+            }
+            return written;
+        } finally {
+            if (reserved) {
+                release(user);
+            }
+        }
+    }
+
+    @Override
+    public List<BatchOutcome> upsertAll(Collection<User> users) {
+        return writeGrouped(new ArrayList<>(users), UserRepository::upsertAll, this::upsertOfTakenName);
+    }
+
+    private BatchOutcome upsertOfTakenName(User user) {
+        return selectById(user.getUserId()) == null ? BatchOutcome.NO_CHANGE : BatchOutcome.FAILED;
+    }
+
+    /**
+     * Writes the rows whose name is free, see {@link #namesTakenElsewhere},
+     * grouped by shard.
+     *
+     * @param whenNameTaken the outcome of a row whose name is taken
+     */
+    private List<BatchOutcome> writeGrouped(List<User> rows,
+            BiFunction<UserRepository, List<User>, List<BatchOutcome>> write,
+            Function<User, BatchOutcome> whenNameTaken) {
+        BatchOutcome[] outcomes = new BatchOutcome[rows.size()];
+        List<User> reserved = new ArrayList<>();
+        List<Integer> reservedIndexes = new ArrayList<>();
+        try {
+            for (int i = 0; i < rows.size(); i++) {
+                if (reserve(rows.get(i))) {
+                    reserved.add(rows.get(i));
+                    reservedIndexes.add(i);
+                } else {
+                    outcomes[i] = whenNameTaken.apply(rows.get(i));
+                }
+            }
+            boolean[] taken = namesTakenElsewhere(reserved);
+            List<User> free = new ArrayList<>();
+            List<Integer> freeIndexes = new ArrayList<>();
+            for (int i = 0; i < reserved.size(); i++) {
+                if (taken[i]) {
+                    outcomes[reservedIndexes.get(i)] = whenNameTaken.apply(reserved.get(i));
+                } else {
+                    free.add(reserved.get(i));
+                    freeIndexes.add(reservedIndexes.get(i));
+                }
+            }
+            List<BatchOutcome> written = perShard(free, User::getUserId, write);
+            for (int i = 0; i < free.size(); i++) {
+                outcomes[freeIndexes.get(i)] = written.get(i);
+                if (written.get(i) == BatchOutcome.SUCCESS) {
+                    shardsByName.put(free.get(i).getUsername(), shardOf(free.get(i).getUserId()));
+                }
+            }
+        } finally {
+            reserved.forEach(this::release);
+        }
+        return Arrays.asList(outcomes);
+    }
+
+    /**
+     * Reads the credentials of each name on every shard but the one of its
+     * user_id, that one has the unique key. All shards are read in parallel,
+     * the names of a shard one after the other.
+     *
+     * @return whether the name of each user is taken, in the order of users
+     */
+    private boolean[] namesTakenElsewhere(List<User> users) {
+        boolean[] taken = new boolean[users.size()];
+        if (users.isEmpty() || shards.size() == 1) {
+            return taken;
+        }
+        List<boolean[]> found = fanOut(allShards(), shard -> {
+            boolean[] onShard = new boolean[users.size()];
+            for (int i = 0; i < users.size(); i++) {
+                User user = users.get(i);
+                onShard[i] = shardOf(user.getUserId()) != shard
+                        && shards.get(shard).selectCredentialsBy(user.getUsername()) != null;
+            }
+            return onShard;
+        });
+        for (boolean[] onShard : found) {
+            for (int i = 0; i < taken.length; i++) {
+                taken[i] |= onShard[i];
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Holds the name for the user_id of the user until {@link #release}, a
+     * write of the same user_id shares the reservation.
+     *
+     * @return false if another user_id holds the name
+     */
+    private boolean reserve(User user) {
+        boolean[] reserved = { false };
+        reservedNames.compute(user.getUsername(), (name, current) -> {
+            if (current == null) {
+                reserved[0] = true;
+                return new NameReservation(user.getUserId());
+            }
+            if (current.userId.equals(user.getUserId())) {
+                current.holders++;
+                reserved[0] = true;
+            }
+            return current;
+        });
+        return reserved[0];
+    }
+
+    private void release(User user) {
+        reservedNames.computeIfPresent(user.getUsername(),
+                (name, current) -> --current.holders == 0 ? null : current);
+    }
+
+    @Override
+    public List<BatchOutcome> incrementLoginTimes(Map<String, Integer> increments) {
+        List<Map.Entry<String, Integer>> rows = new ArrayList<>(increments.entrySet());
+        return perShard(rows, Map.Entry::getKey, (shard, entries) -> {
+            Map<String, Integer> shardIncrements = new LinkedHashMap<>();
+            entries.forEach(entry -> shardIncrements.put(entry.getKey(), entry.getValue()));
+            return shard.incrementLoginTimes(shardIncrements);
+        });
+    }
+
+    /**
+     * Groups the rows by the shard of their user_id, calls each shard in
+     * parallel and puts the outcomes back in the order of rows.
+     */
+    private <T> List<BatchOutcome> perShard(List<T> rows, Function<T, String> userId,
+            BiFunction<UserRepository, List<T>, List<BatchOutcome>> call) {
+        Map<Integer, List<Integer>> indexesByShard = new LinkedHashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            indexesByShard.computeIfAbsent(shardOf(userId.apply(rows.get(i))), shard -> new ArrayList<>()).add(i);
+        }
+        List<Integer> shardIndexes = new ArrayList<>(indexesByShard.keySet());
+        List<List<BatchOutcome>> results = fanOut(shardIndexes, shard -> call.apply(shards.get(shard),
+                indexesByShard.get(shard).stream().map(rows::get).collect(Collectors.toList())));
+        BatchOutcome[] outcomes = new BatchOutcome[rows.size()];
+        for (int i = 0; i < shardIndexes.size(); i++) {
+            List<Integer> indexes = indexesByShard.get(shardIndexes.get(i));
+            for (int j = 0; j < indexes.size(); j++) {
+                outcomes[indexes.get(j)] = results.get(i).get(j);
+            }
+        }
+        return Arrays.asList(outcomes);
+    }
+
+    @Override
+    public boolean update(User user) {
+        return shardFor(user.getUserId()).update(user);
+    }
+
+    /**
+     * One transaction per shard, the shards commit independently.
+     */
+    @Override
+    public List<BatchOutcome> updateAll(Collection<User> users) {
+        return perShard(new ArrayList<>(users), User::getUserId, UserRepository::updateAll);
+    }
+
+    @Override
+    public boolean debit(String userId, double amount) {
+        return shardFor(userId).debit(userId, amount);
+    }
+
+    /**
+     * The name is not known, a cached shard of it is left until it expires or
+     * a lookup on it fails.
+     */
+    @Override
+    public boolean deleteById(String userId) {
+        return shardFor(userId).deleteById(userId);
+    }
+
+    private List<Integer> allShards() {
+        List<Integer> all = new ArrayList<>(shards.size());
+        for (int shard = 0; shard < shards.size(); shard++) {
+            all.add(shard);
+        }
+        return all;
+    }
+
+    /**
+     * Calls every shard in parallel, the calling thread runs the last one.
+     *
+     * @return the results in the order of shardIndexes
+     */
+    private <T> List<T> fanOut(Collection<Integer> shardIndexes, Function<Integer, T> call) {
+        List<Integer> indexes = new ArrayList<>(shardIndexes);
+        if (indexes.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Future<T>> futures = new ArrayList<>(indexes.size());
+        for (int i = 0; i < indexes.size() - 1; i++) {
+            Integer shard = indexes.get(i);
+            futures.add(executor.submit((Callable<T>) () -> call.apply(shard)));
+        }
+        T last = call.apply(indexes.get(indexes.size() - 1));
+        List<T> results = new ArrayList<>(indexes.size());
+        for (Future<T> future : futures) {
+            results.add(await(future));
+        }
+        results.add(last);
+        return results;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the shard threads and closes the shards: the pool of a JDBC shard,
+     * any other shard that is AutoCloseable.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for (UserRepository shard : shards) {
+            if (shard instanceof UserDao) {
+                ((UserDao) shard).closeConnectionPool();
+            } else if (shard instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) shard).close();
+                } catch (Exception e) {
+                    log.error("close shard failed:", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A name being written, changed only inside the compute of reservedNames.
+     */
+    private static final class NameReservation {
+        private final String userId;
+        private int holders = 1;
+
+        NameReservation(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    /**
+     * Takes the users from a queue filled by one reader per shard, a reader
+     * puts END_OF_SHARD when its shard is done or its exception when it
+     * failed.
+     */
+    private class FanOutSpliterator extends Spliterators.AbstractSpliterator<User> {
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(Math.max(scanQueueSize, 1));
+        private final List<Future<?>> readers = new ArrayList<>();
+        private volatile boolean closed;
+        private int running;
+
+        FanOutSpliterator() {
+            super(Long.MAX_VALUE, Spliterator.NONNULL);
+            for (UserRepository shard : shards) {
+                readers.add(executor.submit(() -> read(shard)));
+                running++;
+            }
+        }
+
+        private void read(UserRepository shard) {
+            try (Stream<User> users = shard.scan()) {
+                users.allMatch(this::offer);
+                offer(END_OF_SHARD);
+            } catch (RuntimeException e) {
+                offer(e);
+            }
+        }
+
+        /**
+         * @return false if the stream was closed
+         */
+        private boolean offer(Object element) {
+            try {
+                while (!closed) {
+                    if (queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super User> action) {
+            try {
+                while (running > 0) {
+                    Object element = queue.take();
+                    if (element == END_OF_SHARD) {
+                        running--;
+                    } else if (element instanceof RuntimeException) {
+                        close();
+                        log.error("scan shard failed:", (RuntimeException) element);
+                        throw (RuntimeException) element;
+                    } else {
+                        action.accept((User) element);
+                        return true;
+                    }
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        void close() {
+            closed = true;
+            readers.forEach(reader -> reader.cancel(false));
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.github.budwing.clean.ut;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import com.github.budwing.ConfigLoader;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Logs the {@link UserDao} statements slower than a threshold.
+ * 1. an operation only compares its total time with the threshold, a fast one
+ * costs nothing more
+ * 2. a slow one is queued and formatted by a logging thread, a full queue drops
+ * it instead of blocking the caller. The thread runs from {@link #start()}
+ * to {@link #close()}
+ * 3. a line has the operation, the time of each phase, the row count, the SQL
+ * fingerprint and the bind parameters
+ * 4. the fingerprint is the SQL in lower case with "in (?, ?, ...)" collapsed
+ * to "in (?+)" and its CRC32, so the same query always has the same
+ * fingerprint
+ * 5. the bind parameters are captured by replaying the binding of the statement
+ * on the calling thread when the slow operation ends, the logging thread only
+ * formats the captured values. Parameters of password columns are redacted
+ */
+@Slf4j
+public class SlowQueryLog implements AutoCloseable {
+    static final String REDACTED = "<redacted>";
+    private static final Pattern IN_LIST = Pattern.compile("in\\s*\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern INSERT_COLUMNS = Pattern.compile("insert\\s+into\\s+\\w+\\s*\\(([^)]*)\\)");
+    private static final Pattern COMPARED_COLUMN = Pattern.compile("(\\w+)\\s*(=|<>|!=|>=|<=|>|<|like)\\s*$");
+
+    private final long thresholdNanos;
+    private final BlockingQueue<SlowQuery> queue;
+    private final Thread writer;
+    private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    public SlowQueryLog(long thresholdMillis, int queueSize) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.writer = new Thread(this::write, "slow-query-log");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Starts the logging thread, once.
+     */
+    public synchronized void start() {
+        if (!closed && writer.getState() == Thread.State.NEW) {
+            writer.start();
+        }
+    }
+
+    /**
+     * Creates a log configured by the metrics.slowQuery.* keys of
+     * app.properties.
+     *
+     * @return null if thresholdMillis is 0, i.e. the log is off
+     */
+    public static SlowQueryLog fromConfig() {
+        long thresholdMillis = ConfigLoader.getLongProperty("metrics.slowQuery.thresholdMillis", 200);
+        if (thresholdMillis <= 0) {
+            return null;
+        }
+        return new SlowQueryLog(thresholdMillis, ConfigLoader.getIntProperty("metrics.slowQuery.queueSize", 1000));
+    }
+
+    boolean isSlow(long totalNanos) {
+        return totalNanos >= thresholdNanos;
+    }
+
+    void submit(SlowQuery query) {
+        if (closed || !queue.offer(query)) {
+            dropped.increment();
+        }
+    }
+
+    public long getLogged() {
+        return logged.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void write() {
+        while (!closed || !queue.isEmpty()) {
+            try {
+                SlowQuery query = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (query != null) {
+                    log.warn(format(query));
+                    logged.increment();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("log slow query failed:", e);
+            }
+        }
+    }
+
+    String format(SlowQuery query) {
+        StringBuilder line = new StringBuilder("slow ").append(query.name).append(' ')
+                .append(millis(query.totalNanos)).append(" (acquire ").append(millis(query.acquireNanos))
+                .append(", execute ").append(millis(query.executeNanos)).append(", map ")
+                .append(millis(query.mapNanos)).append(')');
+        if (query.rows >= 0) {
+            line.append(" rows=").append(query.rows);
+        }
+        if (query.sql != null) {
+            Fingerprint fingerprint = fingerprints.computeIfAbsent(query.sql, Fingerprint::new);
+            line.append(" fingerprint=").append(fingerprint.id).append(" sql=[").append(fingerprint.normalized)
+                    .append(']');
+            if (query.parameters != null) {
+                line.append(" parameters=").append(fingerprint.redact(query.parameters));
+            }
+        }
+        return line.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    /**
+     * Replays the binding on a statement that only remembers the parameters.
+     *
+     * @return the bound values in parameter order
+     */
+    static List<Object> capture(UserDao.ParameterSetter parameters) {
+        Map<Integer, Object> values = new TreeMap<>();
+        PreparedStatement recorder = (PreparedStatement) Proxy.newProxyInstance(
+                SlowQueryLog.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+                (proxy, method, args) -> {
+                    if (method.getName().startsWith("set") && args != null && args.length >= 2
+                            && args[0] instanceof Integer) {
+                        values.put((Integer) args[0], method.getName().equals("setNull") ? null : args[1]);
+                    }
+                    return method.getReturnType() == boolean.class ? false : null;
+                });
+        try {
+            parameters.set(recorder);
+        } catch (Exception e) {
+            return List.of("<unknown: " + e.getMessage() + ">");
+        }
+        return new ArrayList<>(values.values());
+    }
+
+    /**
+     * Stops the logging thread after the queued queries are logged.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * What is known about a slow operation when it ends.
+     */
+    static class SlowQuery {
+        private final String name;
+        private final String sql;
+        private final List<Object> parameters;
+        private final long rows;
+        private final long totalNanos;
+        private final long acquireNanos;
+        private final long executeNanos;
+        private final long mapNanos;
+
+        SlowQuery(String name, String sql, List<Object> parameters, long rows, long totalNanos,
+                long acquireNanos, long executeNanos, long mapNanos) {
+            this.name = name;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.rows = rows;
+            this.totalNanos = totalNanos;
+            this.acquireNanos = acquireNanos;
+            this.executeNanos = executeNanos;
+            this.mapNanos = mapNanos;
+        }
+    }
+
+    /**
+     * The normalized SQL, its id and which parameters are passwords.
+     */
+    private static class Fingerprint {
+        private final String normalized;
+        private final String id;
+        private final boolean[] passwords;
+
+        Fingerprint(String sql) {
+            String lowerCase = sql.trim().replaceAll("\\s+", " ").toLowerCase();
+            this.normalized = IN_LIST.matcher(lowerCase).replaceAll("in (?+)");
+            CRC32 crc = new CRC32();
+            crc.update(normalized.getBytes());
+            this.id = String.format("%08x", crc.getValue());
+            this.passwords = passwordParameters(lowerCase);
+        }
+
+        /**
+         * Finds the column of every "?", by the column list of an insert or by
+         * the column it is compared with.
+         */
+        private static boolean[] passwordParameters(String sql) {
+            List<Boolean> passwords = new ArrayList<>();
+            Matcher insert = INSERT_COLUMNS.matcher(sql);
+            List<String> insertColumns = insert.find() ? Arrays.asList(insert.group(1).split("\\s*,\\s*"))
+                    : List.of();
+            int values = sql.indexOf("values");
+            for (int i = sql.indexOf('?'); i >= 0; i = sql.indexOf('?', i + 1)) {
+                String column = null;
+                if (!insertColumns.isEmpty() && values >= 0 && i > values) {
+                    int position = passwords.size();
+                    column = position < insertColumns.size() ? insertColumns.get(position).trim() : null;
+                } else {
+                    Matcher compared = COMPARED_COLUMN.matcher(sql.substring(0, i));
+                    column = compared.find() ? compared.group(1) : null;
+                }
+                passwords.add(column != null && column.contains("password"));
+            }
+            boolean[] result = new boolean[passwords.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = passwords.get(i);
+            }
+            return result;
+        }
+
+        List<Object> redact(List<Object> values) {
+            List<Object> redacted = new ArrayList<>(values);
+            for (int i = 0; i < redacted.size() && i < passwords.length; i++) {
+                if (passwords[i]) {
+                    redacted.set(i, REDACTED);
+                }
+            }
+            return redacted;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.budwing.clean.ut;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import lombok.ToString;
+import lombok.Value;
+
+/**
+ * What a login needs to know about a user, without the rest of the row.
+ * It is read by {@link UserDao#selectCredentialsBy(String)}, the full
+ * {@link com.github.budwing.User} is loaded by user_id only after a login
+ * succeeded.
+ */
+@Value
+public class UserCredentials {
+    String userId;
+    @ToString.Exclude
+    String passwordHash;
+    boolean locked;
+    boolean active;
+
+    /**
+     * Compares in constant time, so the time taken does not tell how much of
+     * the hash matched.
+     */
+    public boolean matches(String hashedPassword) {
+        return passwordHash != null && hashedPassword != null
+                && MessageDigest.isEqual(passwordHash.getBytes(StandardCharsets.US_ASCII),
+                        hashedPassword.getBytes(StandardCharsets.US_ASCII));
+    }
+}
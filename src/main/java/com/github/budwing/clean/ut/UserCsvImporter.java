@@ -0,0 +1,395 @@
+package com.github.budwing.clean.ut;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.budwing.ConfigLoader;
+import com.github.budwing.User;
+import com.github.budwing.clean.function.SmallFunction;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Imports users from a CSV file of user_id,username,password,email[,balance]
+ * lines, an optional first line starting with "user_id" is the header.
+ * The work is a pipeline of stages on their own threads:
+ * 1. read: the file is read through a FileChannel and split into lines
+ * 2. parse: lines become users, a line failing the rules of
+ * {@link SmallFunction.UserService#validateInput} is rejected and logged
+ * 3. hash: hashThreads threads hash the passwords, one core each
+ * 4. write: the calling thread inserts the users by
+ * {@link UserDao#insertAllHashed}, in batches
+ *
+ * The stages pass chunks of chunkRows rows through queues of queueChunks
+ * chunks, a fast stage blocks on a full queue, so the memory does not depend on
+ * the size of the file. A failing stage stops the others.
+ * Quoted fields may contain commas and "" but no line breaks.
+ */
+@Slf4j
+public class UserCsvImporter {
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final long POLL_MILLIS = 100;
+
+    private final UserRepository userDao;
+    private final int chunkRows;
+    private final int queueChunks;
+    private final int hashThreads;
+    private final SmallFunction.UserService validator = new SmallFunction.UserService();
+
+    public UserCsvImporter(UserRepository userDao, int chunkRows, int queueChunks, int hashThreads) {
+        this.userDao = userDao;
+        this.chunkRows = chunkRows;
+        this.queueChunks = queueChunks;
+        this.hashThreads = hashThreads > 0 ? hashThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Creates an importer configured by the import.csv.* keys of
+     * app.properties, hashThreads=0 uses all cores.
+     */
+    public static UserCsvImporter fromConfig(UserRepository userDao) {
+        return new UserCsvImporter(userDao,
+                ConfigLoader.getIntProperty("import.csv.chunkRows", 1000),
+                ConfigLoader.getIntProperty("import.csv.queueChunks", 16),
+                ConfigLoader.getIntProperty("import.csv.hashThreads", 0));
+    }
+
+    public ImportStats importFile(Path csv) {
+        Run run = new Run();
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2 + hashThreads, runnable -> {
+            Thread thread = new Thread(runnable, "user-import-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long started = System.nanoTime();
+        try {
+            List<Future<?>> stages = new ArrayList<>();
+            stages.add(executor.submit(() -> run.stage(run.reading, () -> run.read(csv))));
+            stages.add(executor.submit(() -> run.stage(run.parsing, run::parse)));
+            for (int i = 0; i < hashThreads; i++) {
+                stages.add(executor.submit(() -> run.stage(run.hashing, run::hash)));
+            }
+            run.stage(run.writing, run::write);
+            for (Future<?> stage : stages) {
+                stage.get();
+            }
+        } catch (Exception e) {
+            Throwable cause = run.failure.get() != null ? run.failure.get()
+                    : e instanceof ExecutionException ? e.getCause() : e;
+            log.error("import users from {} failed:", csv, cause);
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        ImportStats stats = run.toStats(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        log.info("imported {}: {}", csv, stats);
+        return stats;
+    }
+
+    /**
+     * Splits a CSV line into fields, a quoted field may contain commas and "".
+     */
+    static List<String> parseLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * @return the user, or null if the line is rejected
+     */
+    private User toUser(String line, long lineNumber) {
+        List<String> fields = parseLine(line);
+        String error = fields.size() < 4 || fields.size() > 5 ? "Expected 4 or 5 fields, found " + fields.size()
+                : fields.get(0).trim().isEmpty() ? "User id cannot be blank"
+                : validator.validateInput(fields.get(1), fields.get(2), fields.get(3));
+        User user = new User();
+        if (error == null && fields.size() == 5 && !fields.get(4).trim().isEmpty()) {
+            try {
+                user.setBalance(Double.valueOf(fields.get(4).trim()));
+            } catch (NumberFormatException e) {
+                error = "Invalid balance";
+            }
+        }
+        if (error != null) {
+            log.warn("line {} rejected: {}", lineNumber, error);
+            return null;
+        }
+        user.setUserId(fields.get(0).trim());
+        user.setUsername(fields.get(1));
+        user.setPassword(fields.get(2));
+        user.setEmail(fields.get(3));
+        return user;
+    }
+
+    /**
+     * The state of one import: the queues between the stages and their meters.
+     */
+    private class Run {
+        private final List<User> endOfUsers = Collections.emptyList();
+        private final Lines endOfLines = new Lines(0, Collections.emptyList());
+        private final BlockingQueue<Lines> lines = new ArrayBlockingQueue<>(queueChunks);
+        private final BlockingQueue<List<User>> parsed = new ArrayBlockingQueue<>(queueChunks);
+        private final BlockingQueue<List<User>> hashed = new ArrayBlockingQueue<>(queueChunks);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final Meter reading = new Meter(1);
+        private final Meter parsing = new Meter(1);
+        private final Meter hashing = new Meter(hashThreads);
+        private final Meter writing = new Meter(1);
+        private final LongAdder rowsRead = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder inserted = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+
+        Void stage(Meter meter, Stage body) throws Exception {
+            long started = System.nanoTime();
+            try {
+                body.run();
+                return null;
+            } catch (Exception | Error e) {
+                failure.compareAndSet(null, e);
+                throw e;
+            } finally {
+                meter.elapsedNanos.add(System.nanoTime() - started);
+            }
+        }
+
+        void read(Path csv) throws Exception {
+            try (FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+                ByteBuffer bytes = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+                CharBuffer chars = CharBuffer.allocate(READ_BUFFER_BYTES);
+                CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+                StringBuilder line = new StringBuilder();
+                List<String> chunk = new ArrayList<>(chunkRows);
+                long lineNumber = 0;
+                boolean endOfInput = false;
+                while (!endOfInput) {
+                    endOfInput = channel.read(bytes) < 0;
+                    bytes.flip();
+                    CoderResult result = decoder.decode(bytes, chars, endOfInput);
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                    if (endOfInput) {
+                        decoder.flush(chars);
+                    }
+                    bytes.compact();
+                    chars.flip();
+                    while (chars.hasRemaining()) {
+                        char c = chars.get();
+                        if (c == '\n') {
+                            chunk.add(line.toString());
+                            line.setLength(0);
+                        } else if (c != '\r') {
+                            line.append(c);
+                        }
+                        if (chunk.size() == chunkRows) {
+                            reading.rows.add(chunk.size());
+                            put(lines, new Lines(lineNumber + 1, chunk), reading);
+                            lineNumber += chunk.size();
+                            chunk = new ArrayList<>(chunkRows);
+                        }
+                    }
+                    chars.clear();
+                }
+                if (line.length() > 0) {
+                    chunk.add(line.toString());
+                }
+                if (!chunk.isEmpty()) {
+                    reading.rows.add(chunk.size());
+                    put(lines, new Lines(lineNumber + 1, chunk), reading);
+                }
+            } finally {
+                putEnd(lines, endOfLines);
+            }
+        }
+
+        void parse() throws Exception {
+            try {
+                for (Lines chunk = take(lines, parsing); chunk != endOfLines; chunk = take(lines, parsing)) {
+                    List<User> users = new ArrayList<>(chunk.lines.size());
+                    for (int i = 0; i < chunk.lines.size(); i++) {
+                        long lineNumber = chunk.firstLine + i;
+                        String line = chunk.lines.get(i);
+                        if (line.isEmpty() || lineNumber == 1 && line.startsWith("user_id")) {
+                            continue;
+                        }
+                        rowsRead.increment();
+                        User user = toUser(line, lineNumber);
+                        if (user == null) {
+                            rejected.increment();
+                        } else {
+                            users.add(user);
+                        }
+                    }
+                    parsing.rows.add(chunk.lines.size());
+                    if (!users.isEmpty()) {
+                        put(parsed, users, parsing);
+                    }
+                }
+            } finally {
+                for (int i = 0; i < hashThreads; i++) {
+                    putEnd(parsed, endOfUsers);
+                }
+            }
+        }
+
+        void hash() throws Exception {
+            try {
+                for (List<User> users = take(parsed, hashing); users != endOfUsers; users = take(parsed, hashing)) {
+                    List<String> hashedPasswords = userDao.hashPasswords(users);
+                    for (int i = 0; i < users.size(); i++) {
+                        users.get(i).setPassword(hashedPasswords.get(i));
+                    }
+                    hashing.rows.add(users.size());
+                    put(hashed, users, hashing);
+                }
+            } finally {
+                putEnd(hashed, endOfUsers);
+            }
+        }
+
+        void write() throws Exception {
+            int running = hashThreads;
+            while (running > 0) {
+                List<User> users = take(hashed, writing);
+                if (users == endOfUsers) {
+                    running--;
+                    continue;
+                }
+                for (BatchOutcome outcome : userDao.insertAllHashed(users)) {
+                    (outcome == BatchOutcome.FAILED ? failed : inserted).increment();
+                }
+                writing.rows.add(users.size());
+            }
+        }
+
+        /**
+         * Waits for room in the queue, unless another stage has failed.
+         */
+        <T> void put(BlockingQueue<T> queue, T item, Meter meter) throws InterruptedException {
+            long started = System.nanoTime();
+            while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkNotFailed();
+            }
+            meter.waitingNanos.add(System.nanoTime() - started);
+        }
+
+        /**
+         * Waits for an item in the queue, unless another stage has failed.
+         */
+        <T> T take(BlockingQueue<T> queue, Meter meter) throws InterruptedException {
+            long started = System.nanoTime();
+            T item;
+            while ((item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                checkNotFailed();
+            }
+            meter.waitingNanos.add(System.nanoTime() - started);
+            return item;
+        }
+
+        /**
+         * Tells the next stage there is no more, gives up if another stage has
+         * failed.
+         */
+        <T> void putEnd(BlockingQueue<T> queue, T end) throws InterruptedException {
+            while (!queue.offer(end, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) {
+                    return;
+                }
+            }
+        }
+
+        private void checkNotFailed() {
+            if (failure.get() != null) {
+                throw new CancellationException("another import stage failed");
+            }
+        }
+
+        ImportStats toStats(long elapsedMillis) {
+            return new ImportStats(rowsRead.sum(), rejected.sum(), inserted.sum(), failed.sum(), elapsedMillis,
+                    reading.rowsPerSecond(), parsing.rowsPerSecond(), hashing.rowsPerSecond(),
+                    writing.rowsPerSecond());
+        }
+    }
+
+    @FunctionalInterface
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    /**
+     * Lines of the file, firstLine is the number of the first one.
+     */
+    private static class Lines {
+        private final long firstLine;
+        private final List<String> lines;
+
+        Lines(long firstLine, List<String> lines) {
+            this.firstLine = firstLine;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * Rows and busy time of a stage run by some threads.
+     */
+    private static class Meter {
+        private final int threads;
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder elapsedNanos = new LongAdder();
+        private final LongAdder waitingNanos = new LongAdder();
+
+        Meter(int threads) {
+            this.threads = threads;
+        }
+
+        double rowsPerSecond() {
+            long busyNanos = Math.max(elapsedNanos.sum() - waitingNanos.sum(), 1);
+            return rows.sum() * 1e9 * threads / busyNanos;
+        }
+    }
+}
@@ -1,28 +1,63 @@
 package com.github.budwing.clean.ut;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.StringJoiner;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.github.budwing.ConfigLoader;
 import com.github.budwing.User;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 /**
+ * The MySQL {@link UserRepository}.
  * Good practice:
  * 1. key properties should be retrieved from config file
  * 2. they should be able to change by setter methods
+ * 3. connections are borrowed from a {@link ConnectionPool} instead of being
+ * opened for every query, the pool is created on first use
+ * 4. statements come from the statement cache of the pooled connection, result
+ * sets and connections are closed by try-with-resources
+ * 5. bulk writes are sent as JDBC batches of batchSize rows, one transaction
+ * per batch
+ * 6. full-table reads are streamed through a server-side cursor, never
+ * collected into a list
+ * 7. queries select an explicit column list, rows are mapped by column position
+ * in {@link UserRowMapper}
+ * 8. with replicaUrls, reads go to the replicas and writes to the primary url,
+ * {@link #readFromPrimary(Supplier)} reads your own writes
+ * 9. parameters are bound by a {@link ParameterSetter} handed to the
+ * operation, so a slow statement can be logged with them
  */
 @Slf4j
 @Data
-public class UserDao {
+public class UserDao implements UserRepository {
     static {
         try {
             Class.forName("com.mysql.cj.jdbc.Driver");
@@ -31,201 +66,852 @@ public class UserDao {
         }
     }
 
+    /**
+     * The SQL strings are constants, so the statement cache of a pooled
+     * connection sees the same key on every call.
+     */
+    private static final String SELECT_USERS = "select " + UserRowMapper.COLUMNS + " from users";
+    static final String SELECT_BY_NAME_AND_PASSWORD = SELECT_USERS + " where user_name=? and password=?";
+    static final String SELECT_BY_ID = SELECT_USERS + " where user_id=?";
+    static final String SELECT_CREDENTIALS_BY_NAME = "select " + UserRowMapper.CREDENTIAL_COLUMNS
+            + " from users where user_name=?";
+    private static final String INSERT = "insert into users(user_id, user_name, password, email, balance, active, login_times, created_at, locked) values(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    /**
+     * A row with the user_id is overwritten, except created_at. A user_name
+     * taken by another user_id also hits a duplicate key, the if() keeps that
+     * other row unchanged. The new row is read through the row alias, VALUES()
+     * in the update list is deprecated since MySQL 8.0.20.
+     */
+    private static final String UPSERT = INSERT + " as new on duplicate key update"
+            + " user_name=if(user_id=new.user_id, new.user_name, user_name),"
+            + " password=if(user_id=new.user_id, new.password, password),"
+            + " email=if(user_id=new.user_id, new.email, email),"
+            + " balance=if(user_id=new.user_id, new.balance, balance),"
+            + " active=if(user_id=new.user_id, new.active, active),"
+            + " login_times=if(user_id=new.user_id, new.login_times, login_times),"
+            + " locked=if(user_id=new.user_id, new.locked, locked)";
+    private static final String DELETE_BY_ID = "delete from users where user_id=?";
+    static final String DELETE_BY_NAME_AND_PASSWORD = "delete from users where user_name=? and password=?";
+    private static final String UPDATE = "update users set balance=?, active=?, login_times=?, locked=? where user_id=?";
+    private static final String DEBIT = "update users set balance=balance-? where user_id=? and balance>=?";
+    static final String DEBIT_BY_NAME_AND_PASSWORD = "update users set balance=balance-? where user_name=? and password=? and balance>=?";
+    private static final String INCREMENT_LOGIN_TIMES = "update users set login_times=login_times+? where user_id=?";
+    private static final String SCAN = SELECT_USERS;
+    private static final String SELECT_FIRST_PAGE = SELECT_USERS + " order by user_id limit ?";
+    static final String SELECT_PAGE = SELECT_USERS + " where user_id > ? order by user_id limit ?";
+    private static final String SELECT_FIRST_PAGE_BY_CREATED_AT = SELECT_USERS + " order by created_at, user_id limit ?";
+    static final String SELECT_PAGE_BY_CREATED_AT = SELECT_USERS + " where created_at > ? or (created_at = ? and user_id > ?) order by created_at, user_id limit ?";
+    /**
+     * The statements of login, its listeners and withdraw, prepared ahead by
+     * {@link WarmUp}.
+     */
+    static final List<String> HOT_STATEMENTS = List.of(SELECT_CREDENTIALS_BY_NAME, SELECT_BY_ID, UPDATE,
+            INCREMENT_LOGIN_TIMES, DEBIT_BY_NAME_AND_PASSWORD);
+
     private String url;
     private String user;
     private String password;
+    private int batchSize;
+    /**
+     * Let MySQL Connector/J rewrite a batch of inserts into multi-row inserts.
+     */
+    private boolean rewriteBatchedStatements;
+    /**
+     * Rows per round trip of the server-side cursor used by {@link #scan()}.
+     */
+    private int scanFetchSize;
+    /**
+     * Ids per "in" list of {@link #selectByIds(Collection)}.
+     */
+    private int multiGetChunkSize;
+    /**
+     * Replicas serving the reads, empty if all reads go to the primary url.
+     */
+    private List<String> replicaUrls;
+    /**
+     * How long a failing replica gets no reads.
+     */
+    private long replicaEjectMillis;
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private volatile ConnectionPool connectionPool;
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private volatile ReplicaRouter replicaRouter;
+    /**
+     * Latency of every method by phase: acquire, execute, map and total. A
+     * disabled instance until one is set.
+     */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private LatencyMetrics latencyMetrics;
+
+    /**
+     * Depth of {@link #readFromPrimary(Supplier)} calls on the current thread.
+     */
+    private static final ThreadLocal<Integer> PRIMARY_READS = ThreadLocal.withInitial(() -> 0);
 
     public UserDao() {
         this.url = ConfigLoader.getProperty("jdbc.url");
         this.user = ConfigLoader.getProperty("jdbc.user");
         this.password = ConfigLoader.getProperty("jdbc.password");
+        this.batchSize = ConfigLoader.getIntProperty("jdbc.batch.size", 500);
+        this.rewriteBatchedStatements = Boolean.parseBoolean(
+                ConfigLoader.getProperty("jdbc.rewriteBatchedStatements", "true"));
+        this.scanFetchSize = ConfigLoader.getIntProperty("jdbc.scan.fetchSize", 1000);
+        this.multiGetChunkSize = ConfigLoader.getIntProperty("jdbc.multiGet.chunkSize", 100);
+        this.replicaUrls = splitUrls(ConfigLoader.getProperty("jdbc.replica.urls", ""));
+        this.replicaEjectMillis = ConfigLoader.getLongProperty("jdbc.replica.ejectMillis", 30000);
+        this.latencyMetrics = new LatencyMetrics(false, false);
+    }
+
+    private static List<String> splitUrls(String urls) {
+        return Arrays.stream(urls.split(",")).map(String::trim).filter(url -> !url.isEmpty())
+                .collect(Collectors.toList());
     }
 
-    private Connection getConnection() {
-        log.debug("url: {}, user: {}", url, user);
+    public void setUrl(String url) {
+        this.url = url;
+        closeConnectionPool();
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+        closeConnectionPool();
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+        closeConnectionPool();
+    }
+
+    public void setRewriteBatchedStatements(boolean rewriteBatchedStatements) {
+        this.rewriteBatchedStatements = rewriteBatchedStatements;
+        closeConnectionPool();
+    }
+
+    public void setReplicaUrls(List<String> replicaUrls) {
+        this.replicaUrls = replicaUrls;
+        closeConnectionPool();
+    }
+
+    public ConnectionPool getConnectionPool() {
+        ConnectionPool pool = connectionPool;
+        if (pool == null) {
+            synchronized (this) {
+                if (connectionPool == null) {
+                    connectionPool = ConnectionPool.fromConfig(() -> openConnection(url));
+                }
+                pool = connectionPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return the router of the replica pools, or null if there are no replicas
+     */
+    public ReplicaRouter getReplicaRouter() {
+        ReplicaRouter router = replicaRouter;
+        if (router == null && replicaUrls != null && !replicaUrls.isEmpty()) {
+            synchronized (this) {
+                if (replicaRouter == null) {
+                    replicaRouter = ReplicaRouter.fromUrls(replicaUrls,
+                            replicaUrl -> () -> openConnection(replicaUrl), replicaEjectMillis);
+                }
+                router = replicaRouter;
+            }
+        }
+        return router;
+    }
+
+    /**
+     * Closes the pools of the primary and the replicas, new ones are created
+     * with the current settings on next use.
+     */
+    public synchronized void closeConnectionPool() {
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+        if (replicaRouter != null) {
+            replicaRouter.close();
+            replicaRouter = null;
+        }
+    }
+
+    /**
+     * Runs the reads on the primary instead of a replica, so they see the
+     * writes of the caller that replication might not have applied yet.
+     */
+    public <T> T readFromPrimary(Supplier<T> reads) {
+        PRIMARY_READS.set(PRIMARY_READS.get() + 1);
+        try {
+            return reads.get();
+        } finally {
+            int depth = PRIMARY_READS.get() - 1;
+            if (depth == 0) {
+                PRIMARY_READS.remove();
+            } else {
+                PRIMARY_READS.set(depth);
+            }
+        }
+    }
+
+    private Connection openConnection(String url) throws SQLException {
+        log.debug("open connection, url: {}, user: {}", url, user);
+        Properties info = new Properties();
+        if (user != null) {
+            info.setProperty("user", user);
+        }
+        if (password != null) {
+            info.setProperty("password", password);
+        }
+        info.setProperty("rewriteBatchedStatements", String.valueOf(rewriteBatchedStatements));
+        // a positive fetch size only streams with a server-side cursor
+        info.setProperty("useCursorFetch", "true");
+        return DriverManager.getConnection(url, info);
+    }
+
+    /**
+     * @return the replica router if the caller doesn't read from the primary,
+     *         otherwise null
+     */
+    private ReplicaRouter getReadRouter() {
+        return PRIMARY_READS.get() == 0 ? getReplicaRouter() : null;
+    }
+
+    /**
+     * Runs the read on a replica connection if a healthy replica has a free
+     * one and the caller doesn't read from the primary, otherwise on a primary
+     * connection. A read failing on the replica is reported to the router and
+     * run again on the primary.
+     */
+    private <T> T read(LatencyMetrics.Operation op, ConnectionCallback<T> read) throws SQLException {
+        ReplicaRouter router = getReadRouter();
+        PooledConnection replica = router == null ? null : router.borrow();
+        if (replica != null) {
+            try (replica) {
+                op.acquired();
+                return read.apply(replica);
+            } catch (SQLException e) {
+                router.failed(replica, e);
+                log.warn("read from replica failed, read from primary: {}", e.getMessage());
+            }
+        } else if (router != null) {
+            log.debug("no healthy replica, read from primary");
+        }
+        try (PooledConnection conn = getConnection()) {
+            op.acquired();
+            return read.apply(conn);
+        }
+    }
+
+    private PooledConnection getConnection() {
         try {
-            return DriverManager.getConnection(url, user, password);
+            return getConnectionPool().borrow();
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("get connection failed:", e);
             throw new RuntimeException(e);
         }
     }
 
     public User selectBy(String username, String password) {
-        Connection conn = getConnection();
         String hashedPassword = hashPassword(password);
-        try {
-            String sql = "select * from users where user_name=? and password=?";
-            PreparedStatement ps = conn.prepareStatement(sql);
-
-            ps.setString(1, username);
-            ps.setString(2, hashedPassword);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                User user = new User();
-                user.setUserId(rs.getString("user_id"));
-                user.setUsername(rs.getString("user_name"));
-                user.setPassword(rs.getString("password"));
-                user.setEmail(rs.getString("email"));
-                user.setBalance(rs.getDouble("balance"));
-                user.setActive(rs.getBoolean("active"));
-                user.setCreatedAt(new Date(rs.getTimestamp("created_at").getTime()));
-                user.setLoginTimes(rs.getInt("login_times"));
-                return user;
-            }
-            return null;
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.selectBy")) {
+            return read(op, conn -> selectOne(op, conn, SELECT_BY_NAME_AND_PASSWORD, ps -> {
+                ps.setString(1, username);
+                ps.setString(2, hashedPassword);
+            }));
         } catch (Exception e) {
             log.error("select user failed:", e);
             throw new RuntimeException(e);
-        } finally {
-            try {
-                conn.close();
-            } catch (Exception e) {
-                log.error("close connection error:", e);
-            }
+        }
+    }
+
+    /**
+     * Reads only user_id, password hash, locked and active of the user, e.g. to
+     * check a login. The password is compared by the caller, see
+     * {@link UserCredentials#matches(String)}. The row is found through
+     * uk_users_user_name and read by its primary key.
+     *
+     * @return null if there is no user with the name
+     */
+    public UserCredentials selectCredentialsBy(String username) {
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.selectCredentialsBy")) {
+            ParameterSetter parameters = ps -> ps.setString(1, username);
+            op.statement(SELECT_CREDENTIALS_BY_NAME, parameters);
+            return read(op, conn -> {
+                PreparedStatement ps = conn.prepareStatement(SELECT_CREDENTIALS_BY_NAME);
+                parameters.set(ps);
+                try (ResultSet rs = ps.executeQuery()) {
+                    op.executed();
+                    UserCredentials credentials = rs.next() ? UserRowMapper.mapCredentials(rs) : null;
+                    op.mapped();
+                    op.rows(credentials == null ? 0 : 1);
+                    return credentials;
+                }
+            });
+        } catch (Exception e) {
+            log.error("select user credentials failed:", e);
+            throw new RuntimeException(e);
         }
     }
 
     public User selectById(String userId) {
-        Connection conn = getConnection();
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.selectById")) {
+            return read(op, conn -> selectOne(op, conn, SELECT_BY_ID, ps -> ps.setString(1, userId)));
+        } catch (Exception e) {
+            log.error("select user by ID failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static User selectOne(LatencyMetrics.Operation op, PooledConnection conn, String sql,
+            ParameterSetter parameters) throws SQLException {
+        op.statement(sql, parameters);
+        PreparedStatement ps = conn.prepareStatement(sql);
+        parameters.set(ps);
+        try (ResultSet rs = ps.executeQuery()) {
+            op.executed();
+            User user = rs.next() ? UserRowMapper.map(rs) : null;
+            op.mapped();
+            op.rows(user == null ? 0 : 1);
+            return user;
+        }
+    }
+
+    /**
+     * Selects many users by id with one connection and one round trip per
+     * multiGetChunkSize ids.
+     * Every chunk uses the same "user_id in (?, ?, ...)" statement, a short last
+     * chunk is padded with its last id, so the statement is prepared once.
+     *
+     * @return a map in the iteration order of userIds, an id without a user is
+     *         mapped to null
+     */
+    public Map<String, User> selectByIds(Collection<String> userIds) {
+        Map<String, User> users = new LinkedHashMap<>();
+        userIds.forEach(id -> users.put(id, null));
+        if (users.isEmpty()) {
+            return users;
+        }
+        List<String> ids = new ArrayList<>(users.keySet());
+        int chunkSize = Math.max(Math.min(multiGetChunkSize, ids.size()), 1);
+        String sql = selectByIdsSql(chunkSize);
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.selectByIds")) {
+            op.statement(sql, null);
+            return read(op, conn -> {
+                PreparedStatement ps = conn.prepareStatement(sql);
+                for (int from = 0; from < ids.size(); from += chunkSize) {
+                    for (int i = 0; i < chunkSize; i++) {
+                        ps.setString(i + 1, ids.get(Math.min(from + i, ids.size() - 1)));
+                    }
+                    try (ResultSet rs = ps.executeQuery()) {
+                        op.executed();
+                        int rows = 0;
+                        for (; rs.next(); rows++) {
+                            User user = UserRowMapper.map(rs);
+                            users.put(user.getUserId(), user);
+                        }
+                        op.mapped();
+                        op.rows(rows);
+                    }
+                }
+                return users;
+            });
+        } catch (Exception e) {
+            log.error("select users by IDs failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
 
+    private static String selectByIdsSql(int size) {
+        StringJoiner placeholders = new StringJoiner(", ", SELECT_USERS + " where user_id in (", ")");
+        for (int i = 0; i < size; i++) {
+            placeholders.add("?");
+        }
+        return placeholders.toString();
+    }
+
+    /**
+     * Returns up to limit users whose user_id is greater than afterUserId, in
+     * user_id order.
+     * It seeks on the primary key instead of skipping rows with OFFSET, so every
+     * page costs the same however deep it is. Pass the last user_id of the
+     * previous page as afterUserId, or null for the first page.
+     */
+    public List<User> selectPage(String afterUserId, int limit) {
+        checkLimit(limit);
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.selectPage")) {
+            if (afterUserId == null) {
+                return selectList(op, SELECT_FIRST_PAGE, ps -> ps.setInt(1, limit));
+            }
+            return selectList(op, SELECT_PAGE, ps -> {
+                ps.setString(1, afterUserId);
+                ps.setInt(2, limit);
+            });
+        }
+    }
+
+    /**
+     * Returns up to limit users created after the given position, in
+     * (created_at, user_id) order. user_id breaks ties between users created at
+     * the same time.
+     * It seeks on the (created_at, user_id) index. Pass createdAt and userId of
+     * the last user of the previous page, or null for the first page.
+     */
+    public List<User> selectPageByCreatedAt(Date afterCreatedAt, String afterUserId, int limit) {
+        checkLimit(limit);
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.selectPageByCreatedAt")) {
+            if (afterCreatedAt == null) {
+                return selectList(op, SELECT_FIRST_PAGE_BY_CREATED_AT, ps -> ps.setInt(1, limit));
+            }
+            Timestamp createdAt = new Timestamp(afterCreatedAt.getTime());
+            return selectList(op, SELECT_PAGE_BY_CREATED_AT, ps -> {
+                ps.setTimestamp(1, createdAt);
+                ps.setTimestamp(2, createdAt);
+                ps.setString(3, afterUserId == null ? "" : afterUserId);
+                ps.setInt(4, limit);
+            });
+        }
+    }
+
+    private static void checkLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+    }
+
+    private List<User> selectList(LatencyMetrics.Operation op, String sql, ParameterSetter parameters) {
+        op.statement(sql, parameters);
         try {
-            String sql = "select * from users where user_id=?";
-            PreparedStatement ps = conn.prepareStatement(sql);
+            return read(op, conn -> {
+                PreparedStatement ps = conn.prepareStatement(sql);
+                parameters.set(ps);
+                try (ResultSet rs = ps.executeQuery()) {
+                    op.executed();
+                    List<User> users = new ArrayList<>();
+                    while (rs.next()) {
+                        users.add(UserRowMapper.map(rs));
+                    }
+                    op.mapped();
+                    op.rows(users.size());
+                    return users;
+                }
+            });
+        } catch (Exception e) {
+            log.error("select users failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
 
-            ps.setString(1, userId);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                User user = new User();
-                user.setUserId(rs.getString("user_id"));
-                user.setUsername(rs.getString("user_name"));
-                user.setPassword(rs.getString("password"));
-                user.setEmail(rs.getString("email"));
-                user.setBalance(rs.getDouble("balance"));
-                user.setActive(rs.getBoolean("active"));
-                user.setCreatedAt(new Date(rs.getTimestamp("created_at").getTime()));
-                user.setLoginTimes(rs.getInt("login_times"));
-                return user;
+    /**
+     * Streams all users without loading them into memory.
+     * MySQL sends rows through a server-side cursor, scanFetchSize rows per round
+     * trip. The stream holds a pooled connection until it is closed, so always
+     * close it, e.g. by try-with-resources.
+     * Its latency is measured up to the first rows, not for the whole stream.
+     */
+    public Stream<User> scan() {
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.scan")) {
+            op.statement(SCAN, null);
+            ReplicaRouter router = getReadRouter();
+            PooledConnection replica = router == null ? null : router.borrow();
+            if (replica != null) {
+                op.acquired();
+                try {
+                    return openScan(op, replica);
+                } catch (SQLException e) {
+                    router.failed(replica, e);
+                    log.warn("scan on replica failed, scan the primary: {}", e.getMessage());
+                }
             }
-            return null;
+            PooledConnection conn = getConnection();
+            op.acquired();
+            return openScan(op, conn);
         } catch (Exception e) {
-            log.error("select user by ID failed:", e);
+            log.error("scan users failed:", e);
             throw new RuntimeException(e);
-        } finally {
+        }
+    }
+
+    /**
+     * The stream owns the connection, it is released when the query fails or
+     * the stream is closed.
+     */
+    private Stream<User> openScan(LatencyMetrics.Operation op, PooledConnection conn) throws SQLException {
+        PreparedStatement ps = null;
+        try {
+            ps = conn.getConnection().prepareStatement(SCAN, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(scanFetchSize);
+            ResultSet rs = ps.executeQuery();
+            op.executed();
+            return StreamSupport.stream(new ResultSetSpliterator(rs), false)
+                    .onClose(closer(rs, ps, conn));
+        } catch (SQLException | RuntimeException e) {
+            closer(null, ps, conn).run();
+            throw e;
+        }
+    }
+
+    private static Runnable closer(ResultSet rs, Statement ps, PooledConnection conn) {
+        return () -> {
             try {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (ps != null) {
+                    ps.close();
+                }
+            } catch (SQLException e) {
+                log.error("close scan cursor error:", e);
+            } finally {
                 conn.close();
-            } catch (Exception e) {
-                log.error("close connection error:", e);
+            }
+        };
+    }
+
+    /**
+     * Maps one row per tryAdvance, so only the current row is held in memory.
+     */
+    private class ResultSetSpliterator extends Spliterators.AbstractSpliterator<User> {
+        private final ResultSet rs;
+
+        ResultSetSpliterator(ResultSet rs) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.rs = rs;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super User> action) {
+            try {
+                if (!rs.next()) {
+                    return false;
+                }
+                action.accept(UserRowMapper.map(rs));
+                return true;
+            } catch (SQLException e) {
+                log.error("scan users failed:", e);
+                throw new RuntimeException(e);
             }
         }
     }
 
     public boolean insert(User user) {
-        Connection conn = getConnection();
         String hashedPassword = hashPassword(user.getPassword());
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.insert");
+                PooledConnection conn = getConnection()) {
+            op.acquired();
+            return executeUpdate(op, conn, INSERT, ps -> bindUser(ps, user, hashedPassword));
+        } catch (Exception e) {
+            log.error("insert user failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
 
-        try {
-            String sql = "insert into users(user_id, user_name, password, email, balance, active, login_times, created_at) values(?, ?, ?, ?, ?, ?, ?, ?)";
+    /**
+     * Inserts users in batches of batchSize rows, each batch is committed in its
+     * own transaction. Passwords of all users are hashed before anything is
+     * written.
+     * A failed batch is rolled back and the following batches are still tried.
+     *
+     * @return the outcome of each user, in the iteration order of users
+     */
+    public List<BatchOutcome> insertAll(Collection<User> users) {
+        if (users.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<User> rows = new ArrayList<>(users);
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.insertAll")) {
+            return writeRows(op, INSERT, rows, hashPasswords(rows));
+        }
+    }
+
+    /**
+     * Like {@link #insertAll(Collection)}, for users whose passwords are hashed
+     * already, e.g. by {@link #hashPasswords(List)} on other threads.
+     */
+    public List<BatchOutcome> insertAllHashed(Collection<User> users) {
+        if (users.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<User> rows = new ArrayList<>(users);
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.insertAllHashed")) {
+            return writeRows(op, INSERT, rows, rows.stream().map(User::getPassword).collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Inserts the user, or overwrites the user with its user_id, in one
+     * statement. created_at of an existing user is kept.
+     * It replaces a selectById, deleteById and insert sequence.
+     *
+     * @return false if nothing changed, e.g. the user_name belongs to another
+     *         user
+     */
+    public boolean upsert(User user) {
+        String hashedPassword = hashPassword(user.getPassword());
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.upsert");
+                PooledConnection conn = getConnection()) {
+            op.acquired();
+            return executeUpdate(op, conn, UPSERT, ps -> bindUser(ps, user, hashedPassword));
+        } catch (Exception e) {
+            log.error("upsert user failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Upserts users in batches of batchSize rows, like
+     * {@link #insertAll(Collection)}.
+     *
+     * @return the outcome of each user, in the iteration order of users
+     */
+    public List<BatchOutcome> upsertAll(Collection<User> users) {
+        if (users.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<User> rows = new ArrayList<>(users);
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.upsertAll")) {
+            return writeRows(op, UPSERT, rows, hashPasswords(rows));
+        }
+    }
+
+    private List<BatchOutcome> writeRows(LatencyMetrics.Operation op, String sql, List<User> rows,
+            List<String> hashedPasswords) {
+        List<Integer> indexes = IntStream.range(0, rows.size()).boxed().collect(Collectors.toList());
+        return executeBatches(op, sql, indexes, (ps, i) -> bindUser(ps, rows.get(i), hashedPasswords.get(i)));
+    }
+
+    private static void bindUser(PreparedStatement ps, User user, String hashedPassword) throws SQLException {
+        ps.setString(1, user.getUserId());
+        ps.setString(2, user.getUsername());
+        ps.setString(3, hashedPassword);
+        ps.setString(4, user.getEmail());
+        ps.setDouble(5, user.getBalance());
+        ps.setBoolean(6, user.isActive());
+        ps.setInt(7, user.getLoginTimes());
+        ps.setTimestamp(8, new Timestamp(user.getCreatedAt().getTime()));
+        ps.setBoolean(9, user.isLocked());
+    }
+
+    /**
+     * Runs the sql once per row, batchSize rows per JDBC batch and transaction.
+     */
+    private <T> List<BatchOutcome> executeBatches(LatencyMetrics.Operation op, String sql, List<T> rows,
+            StatementBinder<T> binder) {
+        return executeBatches(op, sql, rows, binder, batchSize);
+    }
+
+    private <T> List<BatchOutcome> executeBatches(LatencyMetrics.Operation op, String sql, List<T> rows,
+            StatementBinder<T> binder, int rowsPerTransaction) {
+        List<BatchOutcome> outcomes = new ArrayList<>(rows.size());
+        int size = Math.max(rowsPerTransaction, 1);
+        try (PooledConnection conn = getConnection()) {
+            op.acquired();
+            op.statement(sql, null);
+            conn.getConnection().setAutoCommit(false);
             PreparedStatement ps = conn.prepareStatement(sql);
-            ps.setString(1, user.getUserId());
-            ps.setString(2, user.getUsername());
-            ps.setString(3, hashedPassword);
-            ps.setString(4, user.getEmail());
-            ps.setDouble(5, user.getBalance());
-            ps.setBoolean(6, user.isActive());
-            ps.setInt(7, user.getLoginTimes());
-            ps.setTimestamp(8, new Timestamp(user.getCreatedAt().getTime()));
-            return ps.executeUpdate() > 0;
+            for (int from = 0; from < rows.size(); from += size) {
+                List<T> chunk = rows.subList(from, Math.min(from + size, rows.size()));
+                outcomes.addAll(executeBatch(conn.getConnection(), ps, chunk, binder));
+                op.executed();
+                op.rows(chunk.size());
+            }
+            return outcomes;
         } catch (Exception e) {
-            log.error("insert user failed:", e);
+            log.error("execute batch failed:", e);
             throw new RuntimeException(e);
-        } finally {
-            try {
-                conn.close();
-            } catch (Exception e) {
-                log.error("close connection error:", e);
+        }
+    }
+
+    private <T> List<BatchOutcome> executeBatch(Connection conn, PreparedStatement ps, List<T> chunk,
+            StatementBinder<T> binder) throws SQLException {
+        try {
+            for (T row : chunk) {
+                binder.bind(ps, row);
+                ps.addBatch();
+            }
+            int[] counts = ps.executeBatch();
+            conn.commit();
+            List<BatchOutcome> outcomes = new ArrayList<>(chunk.size());
+            for (int i = 0; i < chunk.size(); i++) {
+                // a rewritten multi-row insert may report fewer counts or SUCCESS_NO_INFO
+                int count = i < counts.length ? counts[i] : Statement.SUCCESS_NO_INFO;
+                outcomes.add(count == 0 ? BatchOutcome.NO_CHANGE : BatchOutcome.SUCCESS);
             }
+            return outcomes;
+        } catch (BatchUpdateException e) {
+            log.warn("batch of {} rows failed, roll back: {}", chunk.size(), e.getMessage());
+            ps.clearBatch();
+            conn.rollback();
+            return Collections.nCopies(chunk.size(), BatchOutcome.FAILED);
         }
     }
 
     public boolean deleteById(String userId) {
-        Connection conn = getConnection();
-
-        try {
-            String sql = "delete from users where user_id=?";
-            PreparedStatement ps = conn.prepareStatement(sql);
-            ps.setString(1, userId);
-            return ps.executeUpdate() > 0;
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.deleteById");
+                PooledConnection conn = getConnection()) {
+            op.acquired();
+            return executeUpdate(op, conn, DELETE_BY_ID, ps -> ps.setString(1, userId));
         } catch (Exception e) {
             log.error("delete user failed:", e);
             throw new RuntimeException(e);
-        } finally {
-            try {
-                conn.close();
-            } catch (Exception e) {
-                log.error("close connection error:", e);
-            }
         }
     }
 
     public boolean deleteBy(String username, String password) {
-        Connection conn = getConnection();
         String hashedPassword = hashPassword(password);
-        try {
-            String sql = "delete from users where user_name=? and password=?";
-            PreparedStatement ps = conn.prepareStatement(sql);
-            ps.setString(1, username);
-            ps.setString(2, hashedPassword);
-            return ps.executeUpdate() > 0;
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.deleteBy");
+                PooledConnection conn = getConnection()) {
+            op.acquired();
+            return executeUpdate(op, conn, DELETE_BY_NAME_AND_PASSWORD, ps -> {
+                ps.setString(1, username);
+                ps.setString(2, hashedPassword);
+            });
         } catch (Exception e) {
             log.error("delete user failed:", e);
             throw new RuntimeException(e);
-        } finally {
-            try {
-                conn.close();
-            } catch (Exception e) {
-                log.error("close connection error:", e);
-            }
+        }
+    }
+
+    /**
+     * Updates the users like {@link #update(User)}, all in one batch and one
+     * transaction, so they share one commit. If the batch fails it is rolled
+     * back and every outcome is FAILED.
+     *
+     * @return the outcome of each user, in the iteration order of users
+     */
+    public List<BatchOutcome> updateAll(Collection<User> users) {
+        if (users.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.updateAll")) {
+            return executeBatches(op, UPDATE, new ArrayList<>(users), UserDao::bindUpdate, users.size());
         }
     }
 
     public boolean update(User user) {
-        Connection conn = getConnection();
-        try {
-            String sql = "update users set balance=?, active=?, login_times=? where user_id=?";
-            PreparedStatement ps = conn.prepareStatement(sql);
-            ps.setDouble(1, user.getBalance());
-            ps.setBoolean(2, user.isActive());
-            ps.setInt(3, user.getLoginTimes());
-            ps.setString(4, user.getUserId());
-            return ps.executeUpdate() > 0;
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.update");
+                PooledConnection conn = getConnection()) {
+            op.acquired();
+            return executeUpdate(op, conn, UPDATE, ps -> bindUpdate(ps, user));
         } catch (Exception e) {
             log.error("update user failed:", e);
             throw new RuntimeException(e);
-        } finally {
-            try {
-                conn.close();
-            } catch (Exception e) {
-                log.error("close connection error:", e);
-            }
         }
     }
 
-    public String hashPassword(String password) {
-        String hashedPassword = "";
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(password.getBytes());
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
-            }
-            hashedPassword = sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            log.error("hashed password failed: {}", e);
+    private static void bindUpdate(PreparedStatement ps, User user) throws SQLException {
+        ps.setDouble(1, user.getBalance());
+        ps.setBoolean(2, user.isActive());
+        ps.setInt(3, user.getLoginTimes());
+        ps.setBoolean(4, user.isLocked());
+        ps.setString(5, user.getUserId());
+    }
+
+    /**
+     * Takes amount from the balance of the user if the balance covers it.
+     * Check and debit are one conditional update, so concurrent withdrawals,
+     * also from other nodes, can neither be lost nor overdraw the balance.
+     *
+     * @return whether the balance was debited
+     */
+    public boolean debit(String userId, double amount) {
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.debit");
+                PooledConnection conn = getConnection()) {
+            op.acquired();
+            return executeUpdate(op, conn, DEBIT, ps -> {
+                ps.setDouble(1, amount);
+                ps.setString(2, userId);
+                ps.setDouble(3, amount);
+            });
+        } catch (Exception e) {
+            log.error("debit user failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Like {@link #debit(String, double)}, but the user is identified by its
+     * credentials, so authentication and debit take one round trip.
+     *
+     * @return false if the credentials are wrong or the balance is not enough
+     */
+    public boolean debitBy(String username, String password, double amount) {
+        String hashedPassword = hashPassword(password);
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.debitBy");
+                PooledConnection conn = getConnection()) {
+            op.acquired();
+            return executeUpdate(op, conn, DEBIT_BY_NAME_AND_PASSWORD, ps -> {
+                ps.setDouble(1, amount);
+                ps.setString(2, username);
+                ps.setString(3, hashedPassword);
+                ps.setDouble(4, amount);
+            });
+        } catch (Exception e) {
+            log.error("debit user failed:", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return whether a row was changed
+     */
+    private static boolean executeUpdate(LatencyMetrics.Operation op, PooledConnection conn, String sql,
+            ParameterSetter parameters) throws SQLException {
+        op.statement(sql, parameters);
+        PreparedStatement ps = conn.prepareStatement(sql);
+        parameters.set(ps);
+        int rows = ps.executeUpdate();
+        op.executed();
+        op.rows(rows);
+        return rows > 0;
+    }
+
+    /**
+     * Adds the increments to login_times, only that column is written.
+     * The rows are sent as batches, like {@link #insertAll(Collection)}.
+     *
+     * @param increments the number of logins to add, by user id
+     * @return the outcome of each entry, in the iteration order of increments
+     */
+    public List<BatchOutcome> incrementLoginTimes(Map<String, Integer> increments) {
+        if (increments.isEmpty()) {
+            return Collections.emptyList();
         }
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserDao.incrementLoginTimes")) {
+            return executeBatches(op, INCREMENT_LOGIN_TIMES, new ArrayList<>(increments.entrySet()),
+                    (ps, increment) -> {
+                        ps.setInt(1, increment.getValue());
+                        ps.setString(2, increment.getKey());
+                    });
+        }
+    }
+
+    /**
+     * Binds the parameters of a query to a prepared statement.
+     */
+    @FunctionalInterface
+    interface ParameterSetter {
+        void set(PreparedStatement ps) throws SQLException;
+    }
+
+    /**
+     * A read on a borrowed connection, see {@link #read}.
+     */
+    @FunctionalInterface
+    private interface ConnectionCallback<T> {
+        T apply(PooledConnection conn) throws SQLException;
+    }
 
-        return hashedPassword;
+    /**
+     * Binds the parameters of one row to a prepared statement.
+     */
+    @FunctionalInterface
+    private interface StatementBinder<T> {
+        void bind(PreparedStatement ps, T row) throws SQLException;
     }
 }
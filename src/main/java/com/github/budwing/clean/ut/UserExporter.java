@@ -0,0 +1,378 @@
+package com.github.budwing.clean.ut;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.budwing.ConfigLoader;
+import com.github.budwing.User;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Exports all users to a file, row by row from {@link UserRepository#forEach}.
+ * 1. no list of users is built, each user is encoded into a buffer of
+ * bufferBytes and the buffer is written to a FileChannel when it is full, so
+ * the heap used does not depend on the number of users
+ * 2. CSV has a header line and the columns user_id, user_name, email, balance,
+ * active, created_at (ISO-8601) and login_times
+ * 3. BINARY starts with {@link #BINARY_MAGIC}, then per user: user_id,
+ * user_name and email as an int length and UTF-8 bytes (-1 is null), balance as
+ * a double, active as a byte, created_at as epoch millis (Long.MIN_VALUE is
+ * null) and login_times as an int
+ * 4. with gzip, full buffers are handed to a compressing thread, so encoding
+ * and compressing run in parallel on two buffers
+ *
+ * Password hashes are not exported.
+ */
+@Slf4j
+public class UserExporter {
+    public static final int BINARY_MAGIC = 0x55535231;
+    static final String CSV_HEADER = "user_id,user_name,email,balance,active,created_at,login_times\n";
+
+    public enum Format {
+        CSV, BINARY
+    }
+
+    private final UserRepository userDao;
+    private final int bufferBytes;
+    private final boolean gzip;
+
+    public UserExporter(UserRepository userDao, int bufferBytes, boolean gzip) {
+        this.userDao = userDao;
+        this.bufferBytes = Math.max(bufferBytes, 4096);
+        this.gzip = gzip;
+    }
+
+    /**
+     * Creates an exporter configured by the export.* keys of app.properties.
+     */
+    public static UserExporter fromConfig(UserRepository userDao) {
+        return new UserExporter(userDao,
+                ConfigLoader.getIntProperty("export.bufferBytes", 262144),
+                Boolean.parseBoolean(ConfigLoader.getProperty("export.gzip", "false")));
+    }
+
+    public ExportStats export(Path target, Format format) {
+        long started = System.nanoTime();
+        try {
+            Encoder encoder;
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                    Sink sink = gzip ? new GzipSink(channel, bufferBytes) : new ChannelSink(channel, bufferBytes)) {
+                encoder = format == Format.CSV ? new CsvEncoder(sink) : new BinaryEncoder(sink);
+                encoder.start();
+                userDao.forEach(encoder::encodeQuietly);
+                encoder.finish();
+            }
+            ExportStats stats = new ExportStats(encoder.rows, encoder.bytes, Files.size(target),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            log.info("exported {} users to {} in {}ms, {} MB/s", stats.getRows(), target, stats.getElapsedMillis(),
+                    String.format("%.1f", stats.getMegabytesPerSecond()));
+            return stats;
+        } catch (Exception e) {
+            log.error("export users to {} failed:", target, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Encodes users into the buffer of the sink.
+     */
+    private abstract static class Encoder {
+        private final Sink sink;
+        protected ByteBuffer buffer;
+        private long rows;
+        private long bytes;
+
+        Encoder(Sink sink) {
+            this.sink = sink;
+            this.buffer = sink.next();
+        }
+
+        void start() throws IOException {
+        }
+
+        abstract void encode(User user) throws IOException;
+
+        void encodeQuietly(User user) {
+            try {
+                encode(user);
+                rows++;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Makes room for size bytes.
+         */
+        void ensure(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                flush();
+                if (buffer.remaining() < size) {
+                    throw new IOException("user of " + size + " bytes exceeds the buffer");
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            bytes += buffer.position();
+            buffer = sink.write(buffer);
+        }
+
+        void finish() throws IOException {
+            flush();
+        }
+    }
+
+    private static class CsvEncoder extends Encoder {
+        private final CharsetEncoder charsetEncoder = StandardCharsets.UTF_8.newEncoder();
+        private final StringBuilder line = new StringBuilder();
+
+        CsvEncoder(Sink sink) {
+            super(sink);
+        }
+
+        @Override
+        void start() throws IOException {
+            write(CSV_HEADER);
+        }
+
+        @Override
+        void encode(User user) throws IOException {
+            line.setLength(0);
+            appendField(user.getUserId()).append(',');
+            appendField(user.getUsername()).append(',');
+            appendField(user.getEmail()).append(',');
+            line.append(user.getBalance() == null ? "" : user.getBalance()).append(',');
+            line.append(user.isActive()).append(',');
+            line.append(user.getCreatedAt() == null ? "" : user.getCreatedAt().toInstant()).append(',');
+            line.append(user.getLoginTimes()).append('\n');
+            write(line);
+        }
+
+        private StringBuilder appendField(String value) {
+            if (value == null) {
+                return line;
+            }
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+                return line.append(value);
+            }
+            return line.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+
+        private void write(CharSequence chars) throws IOException {
+            CharBuffer in = CharBuffer.wrap(chars);
+            charsetEncoder.reset();
+            while (true) {
+                CoderResult result = charsetEncoder.encode(in, buffer, true);
+                if (result.isOverflow()) {
+                    flush();
+                } else if (result.isError()) {
+                    result.throwException();
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static class BinaryEncoder extends Encoder {
+        BinaryEncoder(Sink sink) {
+            super(sink);
+        }
+
+        @Override
+        void start() {
+            buffer.putInt(BINARY_MAGIC);
+        }
+
+        @Override
+        void encode(User user) throws IOException {
+            byte[] userId = bytes(user.getUserId());
+            byte[] username = bytes(user.getUsername());
+            byte[] email = bytes(user.getEmail());
+            ensure(12 + length(userId) + length(username) + length(email) + 8 + 1 + 8 + 4);
+            putBytes(userId);
+            putBytes(username);
+            putBytes(email);
+            buffer.putDouble(user.getBalance() == null ? 0 : user.getBalance());
+            buffer.put((byte) (user.isActive() ? 1 : 0));
+            buffer.putLong(user.getCreatedAt() == null ? Long.MIN_VALUE : user.getCreatedAt().getTime());
+            buffer.putInt(user.getLoginTimes());
+        }
+
+        private static byte[] bytes(String value) {
+            return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static int length(byte[] bytes) {
+            return bytes == null ? 0 : bytes.length;
+        }
+
+        private void putBytes(byte[] bytes) {
+            buffer.putInt(bytes == null ? -1 : bytes.length);
+            if (bytes != null) {
+                buffer.put(bytes);
+            }
+        }
+    }
+
+    /**
+     * Takes full buffers and hands out empty ones.
+     */
+    private interface Sink extends AutoCloseable {
+        ByteBuffer next();
+
+        /**
+         * @return an empty buffer to fill next
+         */
+        ByteBuffer write(ByteBuffer full) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private static class ChannelSink implements Sink {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        ChannelSink(FileChannel channel, int bufferBytes) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(bufferBytes);
+        }
+
+        @Override
+        public ByteBuffer next() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer write(ByteBuffer full) throws IOException {
+            full.flip();
+            while (full.hasRemaining()) {
+                channel.write(full);
+            }
+            full.clear();
+            return full;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Compresses on its own thread. Two buffers go round: one is filled while
+     * the other is compressed.
+     */
+    private static class GzipSink implements Sink {
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(1);
+        private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(2);
+        private final ExecutorService compressor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-export-gzip");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Future<?> compressing;
+
+        GzipSink(FileChannel channel, int bufferBytes) {
+            empty.add(ByteBuffer.allocate(bufferBytes));
+            empty.add(ByteBuffer.allocate(bufferBytes));
+            compressing = compressor.submit(() -> compress(channel, bufferBytes));
+        }
+
+        private Void compress(FileChannel channel, int bufferBytes) throws Exception {
+            OutputStream file = Channels.newOutputStream(channel);
+            try (GZIPOutputStream out = new GZIPOutputStream(file, bufferBytes)) {
+                for (ByteBuffer buffer = full.take(); buffer != END; buffer = full.take()) {
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                    empty.put(buffer);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            return empty.remove();
+        }
+
+        @Override
+        public ByteBuffer write(ByteBuffer buffer) throws IOException {
+            hand(full, buffer);
+            ByteBuffer next;
+            try {
+                while ((next = empty.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                    checkCompressing();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return next;
+        }
+
+        private void hand(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) throws IOException {
+            try {
+                while (!queue.offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+                    checkCompressing();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+
+        private void checkCompressing() throws IOException {
+            if (compressing.isDone()) {
+                try {
+                    compressing.get();
+                } catch (Exception e) {
+                    throw new IOException("gzip failed", e);
+                }
+                throw new IOException("gzip stopped");
+            }
+        }
+
+        /**
+         * Waits until everything handed over is compressed and written.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!compressing.isDone()) {
+                    hand(full, END);
+                }
+                compressing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (Exception e) {
+                throw new IOException("gzip failed", e);
+            } finally {
+                compressor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,686 @@
+package com.github.budwing.clean.ut;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import com.github.budwing.User;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The storage of {@link FileUserDao}: an append-only data file of user records
+ * and two {@link MappedHashIndex}es, by user_id and by user_name, from the key
+ * to the offset of its latest record.
+ * 1. the data file is memory-mapped, an append and a lookup are memory
+ * accesses, the mapping grows by doubling
+ * 2. a record is [length][crc32][payload], the payload is a put of a whole
+ * user or a delete of a user_id
+ * 3. a change appends a new record and points the indexes to it, the old one
+ * becomes garbage until the next {@link #compact()}
+ * 4. the indexes are not trusted after a restart, {@link #open} rebuilds them
+ * by replaying the data file, the replay stops at the first torn record
+ * 5. readers share a read lock, writers are serialized by a write mutex and
+ * exclude readers only while they change the mapping and the indexes, so a
+ * compaction holding the write mutex never blocks readers
+ * 6. the user_ids, and the (created_at, user_id) pairs, are also kept in
+ * ordered sets on the heap, pages and scans walk them and read each user by
+ * the index, so they are in key order and never see a compaction
+ *
+ * The data file is limited to 2GB, the size of one mapping.
+ */
+@Slf4j
+final class UserFileStore implements AutoCloseable {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int INITIAL_MAPPING_BYTES = 1 << 20;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private final Path dataPath;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock writeMutex = new ReentrantLock();
+    private final ConcurrentSkipListSet<String> userIds = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<CreatedKey> createdKeys = new ConcurrentSkipListSet<>();
+
+    private FileChannel dataChannel;
+    private Mapping mapping;
+    private MappedHashIndex idIndex;
+    private MappedHashIndex nameIndex;
+    private int end;
+    private long deadBytes;
+    private long liveRecords;
+
+    private UserFileStore(Path dataPath) {
+        this.dataPath = dataPath;
+    }
+
+    /**
+     * Opens the store in the directory, creating it if needed, and rebuilds the
+     * indexes from the data file.
+     */
+    static UserFileStore open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        UserFileStore store = new UserFileStore(directory.resolve("users.dat"));
+        store.recover();
+        return store;
+    }
+
+    private void recover() throws IOException {
+        long started = System.currentTimeMillis();
+        dataChannel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = dataChannel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("data file larger than 2GB: " + dataPath);
+        }
+        mapping = new Mapping(dataChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(size, INITIAL_MAPPING_BYTES)));
+        idIndex = newIdIndex("id", INITIAL_INDEX_CAPACITY, mapping);
+        nameIndex = newNameIndex("name", INITIAL_INDEX_CAPACITY, mapping);
+        int offset = 0;
+        while (isValidRecord(offset)) {
+            replay(offset);
+            offset += recordSize(offset);
+        }
+        end = offset;
+        for (offset = 0; offset < end; offset += recordSize(offset)) {
+            if (isLive(offset)) {
+                User user = decode(offset);
+                userIds.add(user.getUserId());
+                createdKeys.add(CreatedKey.of(user));
+            }
+        }
+        // a torn tail must not come back to life behind the next appends
+        for (int i = end; i < mapping.buffer.capacity(); i++) {
+            mapping.buffer.put(i, (byte) 0);
+        }
+        log.info("opened {}: {} users, {} bytes of garbage, recovered in {}ms", dataPath, liveRecords, deadBytes,
+                System.currentTimeMillis() - started);
+    }
+
+    private void replay(int offset) throws IOException {
+        String userId = userIdAt(offset);
+        long previous = idIndex.get(userId);
+        if (previous != MappedHashIndex.NOT_FOUND) {
+            deadBytes += recordSize((int) previous);
+            nameIndex.remove(usernameAt(previous));
+            liveRecords--;
+        }
+        if (mapping.buffer.get(offset + HEADER_BYTES) == PUT) {
+            idIndex.put(userId, offset);
+            nameIndex.put(usernameAt(offset), offset);
+            liveRecords++;
+        } else {
+            idIndex.remove(userId);
+            deadBytes += recordSize(offset);
+        }
+    }
+
+    private boolean isValidRecord(int offset) {
+        if (offset + HEADER_BYTES > mapping.buffer.capacity()) {
+            return false;
+        }
+        int length = mapping.buffer.getInt(offset);
+        if (length <= 0 || (long) offset + HEADER_BYTES + length > mapping.buffer.capacity()) {
+            return false;
+        }
+        byte[] payload = new byte[length];
+        mapping.buffer.get(offset + HEADER_BYTES, payload);
+        return mapping.buffer.getInt(offset + 4) == crc(payload);
+    }
+
+    private Path indexPath(String key) {
+        return dataPath.resolveSibling("users." + key + ".idx");
+    }
+
+    private MappedHashIndex newIdIndex(String name, int capacity, Mapping keys) throws IOException {
+        return new MappedHashIndex(indexPath(name), capacity, offset -> userIdAt(keys.buffer, (int) offset));
+    }
+
+    private MappedHashIndex newNameIndex(String name, int capacity, Mapping keys) throws IOException {
+        return new MappedHashIndex(indexPath(name), capacity, offset -> usernameAt(keys.buffer, (int) offset));
+    }
+
+    User get(String userId) {
+        lock.readLock().lock();
+        try {
+            long offset = idIndex.get(userId);
+            return offset == MappedHashIndex.NOT_FOUND ? null : decode((int) offset);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    User getByName(String username) {
+        lock.readLock().lock();
+        try {
+            long offset = nameIndex.get(username);
+            return offset == MappedHashIndex.NOT_FOUND ? null : decode((int) offset);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @throws DuplicateKeyException if the user_id or the user_name exists
+     */
+    void insert(User row) throws IOException {
+        writeMutex.lock();
+        try {
+            if (idIndex.get(row.getUserId()) != MappedHashIndex.NOT_FOUND) {
+                throw new DuplicateKeyException("user_id", row.getUserId());
+            }
+            if (nameIndex.get(row.getUsername()) != MappedHashIndex.NOT_FOUND) {
+                throw new DuplicateKeyException("user_name", row.getUsername());
+            }
+            put(row, MappedHashIndex.NOT_FOUND, null);
+        } finally {
+            writeMutex.unlock();
+        }
+    }
+
+    /**
+     * Inserts the user or replaces the user with its user_id, created_at of an
+     * existing user is kept.
+     *
+     * @return false if the user is new and its user_name belongs to another
+     *         user
+     * @throws DuplicateKeyException if the user exists and its new user_name
+     *                               belongs to another user
+     */
+    boolean upsert(User row) throws IOException {
+        writeMutex.lock();
+        try {
+            long offset = idIndex.get(row.getUserId());
+            long nameOffset = nameIndex.get(row.getUsername());
+            if (nameOffset != MappedHashIndex.NOT_FOUND && nameOffset != offset) {
+                if (offset == MappedHashIndex.NOT_FOUND) {
+                    return false;
+                }
+                throw new DuplicateKeyException("user_name", row.getUsername());
+            }
+            if (offset == MappedHashIndex.NOT_FOUND) {
+                put(row, offset, null);
+                return true;
+            }
+            User current = decode((int) offset);
+            row.setCreatedAt(current.getCreatedAt());
+            put(row, offset, current);
+            return true;
+        } finally {
+            writeMutex.unlock();
+        }
+    }
+
+    /**
+     * Replaces the user by the changed copy, the change returns null to keep
+     * the user as it is. The user_name is not changed.
+     *
+     * @return false if the user does not exist or is kept
+     */
+    boolean update(String userId, UnaryOperator<User> change) throws IOException {
+        writeMutex.lock();
+        try {
+            long offset = idIndex.get(userId);
+            if (offset == MappedHashIndex.NOT_FOUND) {
+                return false;
+            }
+            User current = decode((int) offset);
+            User changed = change.apply(current);
+            if (changed == null) {
+                return false;
+            }
+            changed.setUsername(current.getUsername());
+            put(changed, offset, current);
+            return true;
+        } finally {
+            writeMutex.unlock();
+        }
+    }
+
+    /**
+     * @return false if the user does not exist or the condition is false
+     */
+    boolean delete(String userId, Predicate<User> condition) throws IOException {
+        writeMutex.lock();
+        try {
+            long offset = idIndex.get(userId);
+            if (offset == MappedHashIndex.NOT_FOUND) {
+                return false;
+            }
+            User current = decode((int) offset);
+            if (!condition.test(current)) {
+                return false;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(1 + stringBytes(userId));
+            payload.put(DELETE);
+            putString(payload, userId);
+            lock.writeLock().lock();
+            try {
+                int deleted = append(payload.array());
+                idIndex.remove(userId);
+                nameIndex.remove(current.getUsername());
+                userIds.remove(userId);
+                createdKeys.remove(CreatedKey.of(current));
+                deadBytes += recordSize((int) offset) + recordSize(deleted);
+                liveRecords--;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return true;
+        } finally {
+            writeMutex.unlock();
+        }
+    }
+
+    /**
+     * @param current the user at the previous offset, null for a new user
+     */
+    private void put(User row, long previous, User current) throws IOException {
+        byte[] payload = encode(row);
+        lock.writeLock().lock();
+        try {
+            int offset = append(payload);
+            idIndex.put(row.getUserId(), offset);
+            if (current != null && !current.getUsername().equals(row.getUsername())) {
+                nameIndex.remove(current.getUsername());
+            }
+            nameIndex.put(row.getUsername(), offset);
+            if (current != null) {
+                createdKeys.remove(CreatedKey.of(current));
+            }
+            userIds.add(row.getUserId());
+            createdKeys.add(CreatedKey.of(row));
+            if (previous == MappedHashIndex.NOT_FOUND) {
+                liveRecords++;
+            } else {
+                deadBytes += recordSize((int) previous);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int append(byte[] payload) throws IOException {
+        long size = (long) end + HEADER_BYTES + payload.length;
+        if (size > mapping.buffer.capacity()) {
+            remap(size);
+        }
+        int offset = end;
+        mapping.buffer.putInt(offset + 4, crc(payload));
+        mapping.buffer.put(offset + HEADER_BYTES, payload);
+        // the length goes last, a record is not seen before it is whole
+        mapping.buffer.putInt(offset, payload.length);
+        end = (int) size;
+        return offset;
+    }
+
+    private void remap(long size) throws IOException {
+        long capacity = mapping.buffer.capacity();
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        capacity = Math.min(capacity, Integer.MAX_VALUE);
+        if (capacity < size) {
+            throw new IOException("data file full, compact it: " + dataPath);
+        }
+        mapping.buffer = dataChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Returns up to limit users whose user_id is greater than afterUserId, or
+     * the first ones if it is null, in user_id order.
+     */
+    List<User> page(String afterUserId, int limit) {
+        NavigableSet<String> ids = afterUserId == null ? userIds : userIds.tailSet(afterUserId, false);
+        List<User> users = new ArrayList<>();
+        for (String userId : ids) {
+            if (users.size() == limit) {
+                break;
+            }
+            User user = get(userId);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Returns up to limit users after the given position, or the first ones if
+     * afterCreatedAt is null, in (created_at, user_id) order.
+     */
+    List<User> pageByCreatedAt(Date afterCreatedAt, String afterUserId, int limit) {
+        NavigableSet<CreatedKey> keys = afterCreatedAt == null ? createdKeys
+                : createdKeys.tailSet(new CreatedKey(afterCreatedAt.getTime(), afterUserId == null ? "" : afterUserId),
+                        false);
+        List<User> users = new ArrayList<>();
+        for (CreatedKey key : keys) {
+            if (users.size() == limit) {
+                break;
+            }
+            User user = get(key.getUserId());
+            // changed since the key was read, it is at its new key
+            if (user != null && CreatedKey.of(user).equals(key)) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Streams every user in user_id order. A scan holds no lock between two
+     * users and reads each through the index, so a compaction neither waits
+     * for it nor breaks it, and there is nothing to release if it is not
+     * exhausted or closed.
+     */
+    Stream<User> scan() {
+        return userIds.stream().map(this::get).filter(Objects::nonNull);
+    }
+
+    private boolean isLive(int offset) {
+        return mapping.buffer.get(offset + HEADER_BYTES) == PUT && idIndex.get(userIdAt(offset)) == offset;
+    }
+
+    /**
+     * @return the share of the data file taken by garbage
+     */
+    double getGarbageRatio() {
+        lock.readLock().lock();
+        try {
+            return end == 0 ? 0 : (double) deadBytes / end;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long getDeadBytes() {
+        lock.readLock().lock();
+        try {
+            return deadBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long size() {
+        lock.readLock().lock();
+        try {
+            return liveRecords;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the live records to a new data file and swaps it in. Writers wait
+     * for the copy, readers only for the swap.
+     */
+    void compact() throws IOException {
+        writeMutex.lock();
+        try {
+            long started = System.currentTimeMillis();
+            long before = end;
+            Path compactPath = dataPath.resolveSibling(dataPath.getFileName() + ".compact");
+            FileChannel channel = FileChannel.open(compactPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            long liveBytes = Math.max(end - deadBytes, 0);
+            Mapping compacted = new Mapping(channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(Integer.highestOneBit((int) Math.max(liveBytes, 1)) * 2L, INITIAL_MAPPING_BYTES)));
+            int indexCapacity = (int) Math.max(liveRecords * 2, INITIAL_INDEX_CAPACITY);
+            MappedHashIndex newIdIndex = newIdIndex("id.compact", indexCapacity, compacted);
+            MappedHashIndex newNameIndex = newNameIndex("name.compact", indexCapacity, compacted);
+            int target = 0;
+            for (int offset = 0; offset < end; offset += recordSize(offset)) {
+                if (isLive(offset)) {
+                    int size = recordSize(offset);
+                    byte[] record = new byte[size];
+                    mapping.buffer.get(offset, record);
+                    compacted.buffer.put(target, record);
+                    newIdIndex.put(userIdAt(offset), target);
+                    newNameIndex.put(usernameAt(offset), target);
+                    target += size;
+                }
+            }
+            compacted.buffer.force();
+            lock.writeLock().lock();
+            try {
+                Files.move(compactPath, dataPath, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                newIdIndex.moveTo(indexPath("id"));
+                newNameIndex.moveTo(indexPath("name"));
+                dataChannel.close();
+                idIndex.close();
+                nameIndex.close();
+                dataChannel = channel;
+                mapping = compacted;
+                idIndex = newIdIndex;
+                nameIndex = newNameIndex;
+                end = target;
+                deadBytes = 0;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.info("compacted {} from {} to {} bytes in {}ms", dataPath, before, end,
+                    System.currentTimeMillis() - started);
+        } finally {
+            writeMutex.unlock();
+        }
+    }
+
+    /**
+     * Forces the appended records to disk.
+     */
+    void sync() {
+        lock.readLock().lock();
+        try {
+            mapping.buffer.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeMutex.lock();
+        lock.writeLock().lock();
+        try {
+            mapping.buffer.force();
+            dataChannel.close();
+            idIndex.close();
+            nameIndex.close();
+        } finally {
+            lock.writeLock().unlock();
+            writeMutex.unlock();
+        }
+    }
+
+    private int recordSize(int offset) {
+        return HEADER_BYTES + mapping.buffer.getInt(offset);
+    }
+
+    private String userIdAt(long offset) {
+        return userIdAt(mapping.buffer, (int) offset);
+    }
+
+    private String usernameAt(long offset) {
+        return usernameAt(mapping.buffer, (int) offset);
+    }
+
+    private static String userIdAt(ByteBuffer buffer, int offset) {
+        return stringAt(buffer, offset + HEADER_BYTES + 1);
+    }
+
+    private static String usernameAt(ByteBuffer buffer, int offset) {
+        int userIdAt = offset + HEADER_BYTES + 1;
+        return stringAt(buffer, userIdAt + 4 + buffer.getInt(userIdAt));
+    }
+
+    /**
+     * A put payload is: type, user_id, user_name, password, email, balance,
+     * created_at, active, login_times, locked. Strings are a length and UTF-8
+     * bytes, the length -1 is null.
+     */
+    private static byte[] encode(User user) {
+        byte[] userId = bytes(user.getUserId());
+        byte[] username = bytes(user.getUsername());
+        byte[] password = bytes(user.getPassword());
+        byte[] email = bytes(user.getEmail());
+        ByteBuffer payload = ByteBuffer.allocate(1 + 16 + length(userId) + length(username) + length(password)
+                + length(email) + 1 + 8 + 1 + 8 + 1 + 4 + 1);
+        payload.put(PUT);
+        putBytes(payload, userId);
+        putBytes(payload, username);
+        putBytes(payload, password);
+        putBytes(payload, email);
+        payload.put((byte) (user.getBalance() == null ? 0 : 1));
+        payload.putDouble(user.getBalance() == null ? 0 : user.getBalance());
+        payload.put((byte) (user.getCreatedAt() == null ? 0 : 1));
+        payload.putLong(user.getCreatedAt() == null ? 0 : user.getCreatedAt().getTime());
+        payload.put((byte) (user.isActive() ? 1 : 0));
+        payload.putInt(user.getLoginTimes());
+        payload.put((byte) (user.isLocked() ? 1 : 0));
+        return payload.array();
+    }
+
+    private User decode(int offset) {
+        ByteBuffer payload = mapping.buffer.duplicate();
+        payload.position(offset + HEADER_BYTES + 1);
+        User user = new User();
+        user.setUserId(getString(payload));
+        user.setUsername(getString(payload));
+        user.setPassword(getString(payload));
+        user.setEmail(getString(payload));
+        boolean hasBalance = payload.get() == 1;
+        double balance = payload.getDouble();
+        user.setBalance(hasBalance ? balance : null);
+        boolean hasCreatedAt = payload.get() == 1;
+        long createdAt = payload.getLong();
+        user.setCreatedAt(hasCreatedAt ? new Date(createdAt) : null);
+        user.setActive(payload.get() == 1);
+        user.setLoginTimes(payload.getInt());
+        user.setLocked(payload.get() == 1);
+        return user;
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static int stringBytes(String value) {
+        return 4 + length(bytes(value));
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        putBytes(buffer, bytes(value));
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String stringAt(ByteBuffer buffer, int offset) {
+        int length = buffer.getInt(offset);
+        byte[] bytes = new byte[length];
+        buffer.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The data file mapping, remapped in place when the file grows. The
+     * indexes read their keys through it.
+     */
+    private static class Mapping {
+        private MappedByteBuffer buffer;
+
+        Mapping(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * The position of a user in the (created_at, user_id) order, a null
+     * created_at goes first.
+     */
+    @Value
+    private static class CreatedKey implements Comparable<CreatedKey> {
+        long createdAt;
+        String userId;
+
+        static CreatedKey of(User user) {
+            return new CreatedKey(user.getCreatedAt() == null ? Long.MIN_VALUE : user.getCreatedAt().getTime(),
+                    user.getUserId());
+        }
+
+        @Override
+        public int compareTo(CreatedKey other) {
+            int order = Long.compare(createdAt, other.createdAt);
+            return order != 0 ? order : userId.compareTo(other.userId);
+        }
+    }
+
+    /**
+     * A user_id or user_name that exists already.
+     */
+    static class DuplicateKeyException extends RuntimeException {
+        private final String column;
+        private final String value;
+
+        DuplicateKeyException(String column, String value) {
+            super(column + " '" + value + "' exists");
+            this.column = column;
+            this.value = value;
+        }
+
+        String getColumn() {
+            return column;
+        }
+
+        String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.budwing.clean.ut;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import com.github.budwing.User;
+
+/**
+ * The operations on the users, whatever keeps them: the JDBC {@link UserDao},
+ * {@link InMemoryUserDao}, {@link FileUserDao}, or a decorator like
+ * {@link CachingUserDao} in front of one of them.
+ * Passwords are stored as the SHA-256 hash of {@link #hashPassword(String)}.
+ */
+public interface UserRepository {
+
+    User selectBy(String username, String password);
+
+    /**
+     * Reads only user_id, password hash, locked and active of the user, e.g. to
+     * check a login. The password is compared by the caller, see
+     * {@link UserCredentials#matches(String)}.
+     *
+     * @return null if there is no user with the name
+     */
+    UserCredentials selectCredentialsBy(String username);
+
+    User selectById(String userId);
+
+    /**
+     * @return a map in the iteration order of userIds, an id without a user is
+     *         mapped to null
+     */
+    Map<String, User> selectByIds(Collection<String> userIds);
+
+    /**
+     * Returns up to limit users whose user_id is greater than afterUserId, in
+     * user_id order. Pass the last user_id of the previous page as afterUserId,
+     * or null for the first page.
+     */
+    List<User> selectPage(String afterUserId, int limit);
+
+    /**
+     * Returns up to limit users created after the given position, in
+     * (created_at, user_id) order. Pass createdAt and userId of the last user
+     * of the previous page, or null for the first page.
+     */
+    List<User> selectPageByCreatedAt(Date afterCreatedAt, String afterUserId, int limit);
+
+    /**
+     * Streams all users without loading them into memory. Always close the
+     * stream, e.g. by try-with-resources.
+     */
+    Stream<User> scan();
+
+    /**
+     * Calls the action for every user, the scan is closed afterwards.
+     */
+    default void forEach(Consumer<User> action) {
+        try (Stream<User> users = scan()) {
+            users.forEach(action);
+        }
+    }
+
+    boolean insert(User user);
+
+    /**
+     * @return the outcome of each user, in the iteration order of users
+     */
+    List<BatchOutcome> insertAll(Collection<User> users);
+
+    /**
+     * Like {@link #insertAll(Collection)}, for users whose passwords are hashed
+     * already, e.g. by {@link #hashPasswords(List)} on other threads.
+     */
+    List<BatchOutcome> insertAllHashed(Collection<User> users);
+
+    /**
+     * Inserts the user, or overwrites the user with its user_id. created_at of
+     * an existing user is kept.
+     *
+     * @return false if nothing changed, e.g. the user_name belongs to another
+     *         user
+     */
+    boolean upsert(User user);
+
+    /**
+     * @return the outcome of each user, in the iteration order of users
+     */
+    List<BatchOutcome> upsertAll(Collection<User> users);
+
+    boolean deleteById(String userId);
+
+    boolean deleteBy(String username, String password);
+
+    /**
+     * Writes balance, active, login_times and locked of the user.
+     */
+    boolean update(User user);
+
+    /**
+     * @return the outcome of each user, in the iteration order of users
+     */
+    List<BatchOutcome> updateAll(Collection<User> users);
+
+    /**
+     * Takes amount from the balance of the user if the balance covers it, as
+     * one atomic step.
+     *
+     * @return whether the balance was debited
+     */
+    boolean debit(String userId, double amount);
+
+    /**
+     * Like {@link #debit(String, double)}, but the user is identified by its
+     * credentials.
+     *
+     * @return false if the credentials are wrong or the balance is not enough
+     */
+    boolean debitBy(String username, String password, double amount);
+
+    /**
+     * Adds the increments to login_times, only that column is written.
+     *
+     * @param increments the number of logins to add, by user id
+     * @return the outcome of each entry, in the iteration order of increments
+     */
+    List<BatchOutcome> incrementLoginTimes(Map<String, Integer> increments);
+
+    default String hashPassword(String password) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-256").digest(password.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Hashes the passwords of all users with one MessageDigest instance.
+     */
+    default List<String> hashPasswords(List<User> users) {
+        List<String> hashedPasswords = new ArrayList<>(users.size());
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (User user : users) {
+                hashedPasswords.add(toHex(md.digest(user.getPassword().getBytes())));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        return hashedPasswords;
+    }
+
+    private static String toHex(byte[] bytes) {
+        String digits = "0123456789abcdef";
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = digits.charAt((bytes[i] >> 4) & 0x0f);
+            chars[i * 2 + 1] = digits.charAt(bytes[i] & 0x0f);
+        }
+        return new String(chars);
+    }
+}
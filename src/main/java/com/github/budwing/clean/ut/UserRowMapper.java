@@ -0,0 +1,57 @@
+package com.github.budwing.clean.ut;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import com.github.budwing.User;
+
+/**
+ * Maps a row of the users table to a {@link User}.
+ * Queries select exactly {@link #COLUMNS}, so every column is read by its
+ * position: no "select *", no name lookup per row and no reflection.
+ * The positions below must follow the order of COLUMNS.
+ */
+final class UserRowMapper {
+    static final String COLUMNS = "user_id, user_name, password, email, balance, active, created_at, login_times, locked";
+    /**
+     * The columns of {@link #mapCredentials(ResultSet)}, in its order. A
+     * lookup by user_name is a const lookup on uk_users_user_name plus one read
+     * of the row by primary key, fewer columns only save the transfer and the
+     * mapping of the others.
+     */
+    static final String CREDENTIAL_COLUMNS = "user_id, password, locked, active";
+
+    private static final int USER_ID = 1;
+    private static final int USER_NAME = 2;
+    private static final int PASSWORD = 3;
+    private static final int EMAIL = 4;
+    private static final int BALANCE = 5;
+    private static final int ACTIVE = 6;
+    private static final int CREATED_AT = 7;
+    private static final int LOGIN_TIMES = 8;
+    private static final int LOCKED = 9;
+
+    private UserRowMapper() {
+    }
+
+    static User map(ResultSet rs) throws SQLException {
+        User user = new User();
+        user.setUserId(rs.getString(USER_ID));
+        user.setUsername(rs.getString(USER_NAME));
+        user.setPassword(rs.getString(PASSWORD));
+        user.setEmail(rs.getString(EMAIL));
+        user.setBalance(rs.getDouble(BALANCE));
+        user.setActive(rs.getBoolean(ACTIVE));
+        Timestamp createdAt = rs.getTimestamp(CREATED_AT);
+        user.setCreatedAt(createdAt == null ? null : new Date(createdAt.getTime()));
+        user.setLoginTimes(rs.getInt(LOGIN_TIMES));
+        user.setLocked(rs.getBoolean(LOCKED));
+        return user;
+    }
+
+    static UserCredentials mapCredentials(ResultSet rs) throws SQLException {
+        return new UserCredentials(rs.getString(1), rs.getString(2), rs.getBoolean(3), rs.getBoolean(4));
+    }
+}
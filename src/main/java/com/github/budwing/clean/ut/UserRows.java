@@ -0,0 +1,58 @@
+package com.github.budwing.clean.ut;
+
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import com.github.budwing.User;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * What {@link InMemoryUserDao} and {@link FileUserDao} share to behave like
+ * the users table: the page limit check, batch writes with an outcome per row
+ * and the duplicate key failure.
+ */
+@Slf4j
+final class UserRows {
+    private UserRows() {
+    }
+
+    static void checkPageLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+    }
+
+    /**
+     * Writes a copy of each row with its hashed password, a row whose write
+     * throws is FAILED and does not stop the others.
+     *
+     * @return the outcome of each row, in the order of rows
+     */
+    static List<BatchOutcome> writeAll(List<User> rows, List<String> hashedPasswords, Predicate<User> write) {
+        List<BatchOutcome> outcomes = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            User row = rows.get(i).copy();
+            row.setPassword(hashedPasswords.get(i));
+            try {
+                outcomes.add(write.test(row) ? BatchOutcome.SUCCESS : BatchOutcome.NO_CHANGE);
+            } catch (RuntimeException e) {
+                outcomes.add(BatchOutcome.FAILED);
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * The failure of a write whose user_id or user_name exists, as MySQL
+     * reports it.
+     */
+    static RuntimeException duplicateKey(String column, String value) {
+        SQLIntegrityConstraintViolationException e = new SQLIntegrityConstraintViolationException(
+                "Duplicate entry '" + value + "' for key '" + column + "'");
+        log.error("write user failed:", e);
+        return new RuntimeException(e);
+    }
+}
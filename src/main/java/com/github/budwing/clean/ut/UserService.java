@@ -9,45 +9,99 @@ import com.github.budwing.User;
 
 public class UserService {
     private List<LoginListener> loginListeners = new ArrayList<LoginListener>();
-    private UserDao userDao;
+    private UserRepository userDao;
+    private LatencyMetrics latencyMetrics = new LatencyMetrics(false, false);
+    private volatile boolean ready;
 
     public void addLoginListener(LoginListener loginListener) {
         loginListeners.add(loginListener);
     }
 
-    public void setUserDao(UserDao userDao) {
+    public void setUserDao(UserRepository userDao) {
         this.userDao = userDao;
     }
 
+    public void setLatencyMetrics(LatencyMetrics latencyMetrics) {
+        this.latencyMetrics = latencyMetrics;
+    }
+
+    /**
+     * Runs the {@link WarmUp} configured in app.properties, if it is enabled,
+     * then reports ready. Call it once at startup, before taking requests.
+     */
+    public void warmUp() {
+        WarmUp warmUp = WarmUp.fromConfig(userDao);
+        if (warmUp != null) {
+            warmUp.run();
+        }
+        ready = true;
+    }
+
+    /**
+     * @return true once {@link #warmUp()} returned
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * The login is decided on the credentials only, see
+     * {@link #authenticate(String, String)}. The full user is loaded by its
+     * user_id after the login succeeded.
+     */
     public User login(String username, String password) {
-        User user = userDao.selectBy(username, password);
-        if (user != null) {
-            if (user.isLocked()) {
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserService.login")) {
+            UserCredentials credentials = userDao.selectCredentialsBy(username);
+            if (credentials == null || !credentials.matches(userDao.hashPassword(password))) {
+                for (LoginListener loginListener : loginListeners) {
+                    loginListener.onLoginFailure(username, password);
+                }
                 return null;
             }
-
-            for (LoginListener loginListener : loginListeners) {
-                loginListener.onLoginSuccess(user);
+            if (credentials.isLocked()) {
+                return null;
             }
-        } else {
-            for (LoginListener loginListener : loginListeners) {
-                loginListener.onLoginFailure(username, password);
+
+            User user = userDao.selectById(credentials.getUserId());
+            if (user != null) {
+                for (LoginListener loginListener : loginListeners) {
+                    loginListener.onLoginSuccess(user);
+                }
             }
+            return user;
         }
+    }
 
-        return user;
+    /**
+     * Checks the password without loading the user and without notifying the
+     * listeners.
+     *
+     * @return the credentials of the user, or null if the password is wrong or
+     *         the user is locked
+     */
+    public UserCredentials authenticate(String username, String password) {
+        UserCredentials credentials = userDao.selectCredentialsBy(username);
+        if (credentials == null || credentials.isLocked()
+                || !credentials.matches(userDao.hashPassword(password))) {
+            return null;
+        }
+        return credentials;
     }
 
+    /**
+     * Authentication, balance check and debit are a single conditional update,
+     * see {@link UserDao#debitBy(String, String, double)}.
+     *
+     * @return false if the credentials are wrong, the balance is not enough or
+     *         the amount is not positive
+     */
     public boolean withdraw(String username, String password, double amount) {
-        User user = userDao.selectBy(username, password);
-        if (user != null && user.getBalance() >= amount) {
-            user.setBalance(user.getBalance() - amount);
-            userDao.update(user);
-            return true;
+        if (!(amount > 0)) {
+            return false;
+        }
+        try (LatencyMetrics.Operation op = latencyMetrics.start("UserService.withdraw")) {
+            return userDao.debitBy(username, password, amount);
         }
-
-        return false;
-
     }
 
     public static interface LoginListener {
@@ -58,17 +112,47 @@ public class UserService {
 }
 
 class LoginAttemptsListener implements UserService.LoginListener {
-    private UserDao userDao;
+    private UserRepository userDao;
+    private LoginTimesWriteBehind loginTimesWriteBehind;
+    private GroupCommitUpdater groupCommitUpdater;
     private Map<String, Integer> loginAttempts = new ConcurrentHashMap<String, Integer>();
 
-    public void setUserDao(UserDao userDao) {
+    public void setUserDao(UserRepository userDao) {
         this.userDao = userDao;
     }
 
+    /**
+     * With a write-behind buffer, successful logins only increase login_times
+     * in memory, the buffer writes them in batches.
+     */
+    public void setLoginTimesWriteBehind(LoginTimesWriteBehind loginTimesWriteBehind) {
+        this.loginTimesWriteBehind = loginTimesWriteBehind;
+    }
+
+    /**
+     * With a group-commit updater, concurrent updates are committed together,
+     * every caller still waits for its commit.
+     */
+    public void setGroupCommitUpdater(GroupCommitUpdater groupCommitUpdater) {
+        this.groupCommitUpdater = groupCommitUpdater;
+    }
+
     @Override
     public void onLoginSuccess(User user) {
         user.setLoginTimes(user.getLoginTimes() + 1);
-        userDao.update(user);
+        if (loginTimesWriteBehind != null) {
+            loginTimesWriteBehind.increment(user.getUserId());
+        } else {
+            update(user);
+        }
+    }
+
+    private void update(User user) {
+        if (groupCommitUpdater != null) {
+            groupCommitUpdater.update(user).join();
+        } else {
+            userDao.update(user);
+        }
     }
 
     @Override
@@ -82,7 +166,7 @@ class LoginAttemptsListener implements UserService.LoginListener {
         if (attempts > 5) {
             User user = userDao.selectBy(username, null);
             user.setLocked(true);
-            userDao.update(user);
+            update(user);
         }
     }
 }
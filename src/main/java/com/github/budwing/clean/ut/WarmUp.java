@@ -0,0 +1,168 @@
+package com.github.budwing.clean.ut;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.github.budwing.ConfigLoader;
+import com.github.budwing.User;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Does the one-time work of the login path before the first login does it.
+ * 1. connections: loads the JDBC driver and opens the minIdle connections of
+ * the pools, of every shard of a {@link ShardedUserDao}, also behind a
+ * {@link CachingUserDao}
+ * 2. statements: prepares {@link UserDao#HOT_STATEMENTS} on every idle
+ * primary connection, into its statement cache
+ * 3. hashing: looks up the SHA-256 provider and hashes and compares synthetic
+ * passwords iterations times, so the JIT compiles them
+ * 4. mapping: reads about iterations users of every database in pages of
+ * MAPPING_PAGE_SIZE, then the credentials of the last page, so the row
+ * mapping is compiled against the ResultSet of the driver. An empty table
+ * maps nothing
+ *
+ * The time of each step is logged. A failed step is logged and skipped, the
+ * warm-up never keeps the service from getting ready, see
+ * {@link UserService#isReady()}. Replica statements are prepared on first use.
+ */
+@Slf4j
+public class WarmUp {
+    private static final int MAPPING_PAGE_SIZE = 100;
+
+    private final UserRepository userDao;
+    private final int iterations;
+
+    public WarmUp(UserRepository userDao, int iterations) {
+        this.userDao = userDao;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Creates a warm-up configured by the warmUp.* keys of app.properties.
+     *
+     * @return null if warmUp.enabled is false
+     */
+    public static WarmUp fromConfig(UserRepository userDao) {
+        if (!Boolean.parseBoolean(ConfigLoader.getProperty("warmUp.enabled", "false"))) {
+            return null;
+        }
+        return new WarmUp(userDao, ConfigLoader.getIntProperty("warmUp.iterations", 10000));
+    }
+
+    /**
+     * Runs the steps in order.
+     *
+     * @return the milliseconds of each step, in order
+     */
+    public Map<String, Long> run() {
+        long start = System.nanoTime();
+        Map<String, Long> millis = new LinkedHashMap<>();
+        millis.put("connections", step("connections", this::openConnections));
+        millis.put("statements", step("statements", this::prepareStatements));
+        millis.put("hashing", step("hashing", this::hashPasswords));
+        millis.put("mapping", step("mapping", this::mapRows));
+        log.info("warm-up done in {}ms: {}", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), millis);
+        return millis;
+    }
+
+    private static long step(String name, Runnable step) {
+        long start = System.nanoTime();
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            log.warn("warm-up step {} failed: {}", name, e.getMessage());
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("warm-up step {} took {}ms", name, millis);
+        return millis;
+    }
+
+    private List<UserDao> databases() {
+        return databases(userDao);
+    }
+
+    /**
+     * The JDBC databases behind the repository, none for other backends.
+     */
+    private static List<UserDao> databases(UserRepository repository) {
+        if (repository instanceof CachingUserDao) {
+            return databases(((CachingUserDao) repository).getDelegate());
+        }
+        if (repository instanceof ShardedUserDao) {
+            return ((ShardedUserDao) repository).getShards().stream().flatMap(shard -> databases(shard).stream())
+                    .collect(Collectors.toList());
+        }
+        if (repository instanceof UserDao) {
+            return List.of((UserDao) repository);
+        }
+        return List.of();
+    }
+
+    private void openConnections() {
+        for (UserDao database : databases()) {
+            // a new pool opens minIdle connections itself
+            database.getConnectionPool().prewarm();
+            database.getReplicaRouter();
+        }
+    }
+
+    /**
+     * Borrows the idle connections all at once, so each of them gets the
+     * statements.
+     */
+    private void prepareStatements() {
+        for (UserDao database : databases()) {
+            ConnectionPool pool = database.getConnectionPool();
+            int idle = Math.max(pool.getStats().getIdle(), 1);
+            List<PooledConnection> connections = new ArrayList<>(idle);
+            try {
+                for (int i = 0; i < idle; i++) {
+                    PooledConnection conn = pool.borrow();
+                    connections.add(conn);
+                    for (String sql : UserDao.HOT_STATEMENTS) {
+                        conn.prepareStatement(sql);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("prepare statements failed:", e);
+                throw new RuntimeException(e);
+            } finally {
+                connections.forEach(PooledConnection::close);
+            }
+        }
+    }
+
+    private void hashPasswords() {
+        String expected = userDao.hashPassword("warm-up");
+        UserCredentials credentials = new UserCredentials("warm-up", expected, false, true);
+        int matched = 0;
+        for (int i = 0; i < iterations; i++) {
+            if (credentials.matches(userDao.hashPassword(i % 2 == 0 ? "warm-up" : "warm-up-" + i))) {
+                matched++;
+            }
+        }
+        log.debug("warm-up hashed {} passwords, {} matched", iterations, matched);
+    }
+
+    /**
+     * Reads the first page again and again, it stays in the buffer pool.
+     */
+    private void mapRows() {
+        int pages = Math.max(iterations / MAPPING_PAGE_SIZE, 1);
+        for (UserDao database : databases()) {
+            List<User> page = List.of();
+            for (int i = 0; i < pages; i++) {
+                page = database.selectPage(null, MAPPING_PAGE_SIZE);
+            }
+            for (User user : page) {
+                database.selectCredentialsBy(user.getUsername());
+            }
+            log.debug("warm-up mapped {} pages of {} users", pages, page.size());
+        }
+    }
+}
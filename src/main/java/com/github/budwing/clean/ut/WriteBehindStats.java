@@ -0,0 +1,30 @@
+package com.github.budwing.clean.ut;
+
+import lombok.Value;
+
+/**
+ * A point-in-time snapshot of {@link LoginTimesWriteBehind} metrics.
+ */
+@Value
+public class WriteBehindStats {
+    /**
+     * users with increments not written yet
+     */
+    int pendingUsers;
+    /**
+     * age of the oldest increment not written yet, 0 if nothing is pending
+     */
+    long lagMillis;
+    long flushes;
+    long failedFlushes;
+    int lastFlushSize;
+    /**
+     * logins recorded in total, compare with flushedRows to see the coalescing
+     */
+    long recordedLogins;
+    long flushedRows;
+    /**
+     * logins not recorded because maxPendingUsers users were pending
+     */
+    long droppedLogins;
+}
@@ -0,0 +1,22 @@
+-- the users table of UserDao, MySQL 8
+-- password is the hex SHA-256 of UserDao.hashPassword
+create table if not exists users (
+    user_id varchar(64) not null,
+    user_name varchar(64) not null,
+    password char(64) not null,
+    email varchar(255),
+    balance double not null default 0,
+    active boolean not null default true,
+    created_at timestamp(3) not null default current_timestamp(3),
+    login_times int not null default 0,
+    locked boolean not null default false,
+    primary key (user_id)
+) engine=InnoDB default charset=utf8mb4;
+
+-- one user per name, upsert relies on it; login by name is a lookup of it and of the primary key
+-- no covering (user_name, password, locked, active) index: the optimizer picks the unique index as a
+-- const lookup anyway, so a covering one would only be written on every insert and lock, never read
+create unique index uk_users_user_name on users(user_name);
+
+-- pages by created_at
+create index idx_users_created_at on users(created_at, user_id);
@@ -0,0 +1,65 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.github.budwing.User;
+
+@ExtendWith(MockitoExtension.class)
+public class AsyncUserDaoTest {
+    @Mock
+    private UserDao userDao;
+
+    @Test
+    public void composeLookups_whenFannedOut() throws Exception {
+        when(userDao.selectById("1")).thenReturn(UserDaoTest.newUser("1"));
+        when(userDao.selectById("2")).thenReturn(UserDaoTest.newUser("2"));
+
+        try (AsyncUserDao asyncUserDao = new AsyncUserDao(userDao, AsyncUserDao.newBoundedExecutor(2, 10), 12)) {
+            CompletableFuture<User> first = asyncUserDao.selectByIdAsync("1");
+            CompletableFuture<User> second = asyncUserDao.selectByIdAsync("2");
+            String names = first.thenCombine(second, (a, b) -> a.getUsername() + "," + b.getUsername()).get();
+
+            assertEquals("user_1,user_2", names);
+        }
+    }
+
+    @Test
+    public void failFast_whenTooManyOperationsAreInFlight() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (AsyncUserDao asyncUserDao = new AsyncUserDao(userDao, AsyncUserDao.newBoundedExecutor(1, 1), 1)) {
+            CompletableFuture<Boolean> blocked = asyncUserDao.submit(dao -> {
+                await(release);
+                return true;
+            });
+
+            CompletableFuture<User> rejected = asyncUserDao.selectByIdAsync("1");
+
+            ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+            assertInstanceOf(RejectedExecutionException.class, e.getCause());
+            assertEquals(1, asyncUserDao.getInFlight());
+            release.countDown();
+            blocked.get();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.github.budwing.User;
+
+@ExtendWith(MockitoExtension.class)
+public class CachingUserDaoTest {
+    @Mock
+    private UserDao delegate;
+    private CachingUserDao userDao;
+
+    @BeforeEach
+    public void setUp() {
+        userDao = new CachingUserDao(delegate, new LocalCache<>(10, 60000, LocalCache.EvictionPolicy.LRU));
+    }
+
+    @Test
+    public void loadOnce_whenUserIsSelectedTwice() {
+        User user = UserDaoTest.newUser("1");
+        when(delegate.selectById("1")).thenReturn(user);
+
+        userDao.selectById("1");
+        User cached = userDao.selectById("1");
+
+        assertEquals("user_1", cached.getUsername());
+        assertNotSame(user, cached);
+        verify(delegate, times(1)).selectById("1");
+        assertEquals(1, userDao.getCacheStats().getHits());
+    }
+
+    @Test
+    public void loadAgain_whenUserIsUpdated() {
+        User user = UserDaoTest.newUser("1");
+        when(delegate.selectById("1")).thenReturn(user);
+        userDao.selectById("1");
+
+        user.setBalance(50.0);
+        userDao.update(user);
+        User reloaded = userDao.selectById("1");
+
+        assertEquals(50.0, reloaded.getBalance());
+        verify(delegate, times(2)).selectById("1");
+    }
+
+    @Test
+    public void loadAgain_whenUserIsDeletedByName() {
+        User user = UserDaoTest.newUser("1");
+        when(delegate.selectById("1")).thenReturn(user);
+        userDao.selectById("1");
+
+        userDao.deleteBy("user_1", "password_1");
+        userDao.selectById("1");
+
+        verify(delegate, times(2)).selectById("1");
+    }
+
+    @Test
+    public void loadOnlyMissingUsers_whenSelectByIds() {
+        User first = UserDaoTest.newUser("1");
+        User second = UserDaoTest.newUser("2");
+        when(delegate.selectById("1")).thenReturn(first);
+        when(delegate.selectByIds(List.of("2"))).thenReturn(Map.of("2", second));
+        userDao.selectById("1");
+
+        Map<String, User> users = userDao.selectByIds(List.of("1", "2"));
+
+        assertEquals(List.of("1", "2"), List.copyOf(users.keySet()));
+        assertEquals("user_2", users.get("2").getUsername());
+    }
+
+    @Test
+    public void answerRepeatedMissFromCache_whenLoginFails() {
+        userDao.setMissCache(new LocalCache<>(10, 60000, LocalCache.EvictionPolicy.LRU));
+        when(delegate.hashPassword("wrong")).thenReturn("hash_of_wrong");
+
+        assertNull(userDao.selectBy("budwing", "wrong"));
+        assertNull(userDao.selectBy("budwing", "wrong"));
+
+        verify(delegate, times(1)).selectBy("budwing", "wrong");
+        assertEquals(1, userDao.getMissCacheStats().getHits());
+    }
+
+    @Test
+    public void queryAgain_whenAnotherPasswordIsTried() {
+        userDao.setMissCache(new LocalCache<>(10, 60000, LocalCache.EvictionPolicy.LRU));
+        when(delegate.hashPassword("wrong")).thenReturn("hash_of_wrong");
+        when(delegate.hashPassword("password_1")).thenReturn("hash_of_password_1");
+        User user = UserDaoTest.newUser("1");
+        when(delegate.selectBy("user_1", "password_1")).thenReturn(user);
+
+        assertNull(userDao.selectBy("user_1", "wrong"));
+        assertEquals(user, userDao.selectBy("user_1", "password_1"));
+        assertNull(userDao.selectBy("user_1", "wrong"));
+
+        verify(delegate, times(1)).selectBy("user_1", "wrong");
+    }
+
+    @Test
+    public void queryAgain_whenMissedUserIsInserted() {
+        userDao.setMissCache(new LocalCache<>(10, 60000, LocalCache.EvictionPolicy.LRU));
+        when(delegate.hashPassword("password_1")).thenReturn("hash_of_password_1");
+        User user = UserDaoTest.newUser("1");
+        userDao.selectBy("user_1", "password_1");
+
+        userDao.insert(user);
+        when(delegate.selectBy("user_1", "password_1")).thenReturn(user);
+
+        assertEquals(user, userDao.selectBy("user_1", "password_1"));
+        verify(delegate, times(2)).selectBy("user_1", "password_1");
+    }
+
+    @Test
+    public void answerUnknownNameFromCache_whenCredentialsAreMissing() {
+        userDao.setMissCache(new LocalCache<>(10, 60000, LocalCache.EvictionPolicy.LRU));
+
+        assertNull(userDao.selectCredentialsBy("user_1"));
+        assertNull(userDao.selectCredentialsBy("user_1"));
+        assertNull(userDao.selectBy("user_1", "password_1"));
+
+        verify(delegate, times(1)).selectCredentialsBy("user_1");
+        verify(delegate, never()).selectBy("user_1", "password_1");
+    }
+
+    @Test
+    public void queryCredentialsAgain_whenUnknownNameIsInserted() {
+        userDao.setMissCache(new LocalCache<>(10, 60000, LocalCache.EvictionPolicy.LRU));
+        User user = UserDaoTest.newUser("1");
+        UserCredentials credentials = new UserCredentials("1", "hash_of_password_1", false, true);
+        userDao.selectCredentialsBy("user_1");
+
+        userDao.insert(user);
+        when(delegate.selectCredentialsBy("user_1")).thenReturn(credentials);
+
+        assertEquals(credentials, userDao.selectCredentialsBy("user_1"));
+        assertEquals(credentials, userDao.selectCredentialsBy("user_1"));
+        verify(delegate, times(3)).selectCredentialsBy("user_1");
+    }
+}
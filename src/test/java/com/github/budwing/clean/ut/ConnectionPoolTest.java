@@ -0,0 +1,149 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The pool is tested with mocked connections, no database is needed.
+ */
+public class ConnectionPoolTest {
+
+    private static Connection validConnection() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(connection.isValid(anyInt())).thenReturn(true);
+        when(connection.getAutoCommit()).thenReturn(true);
+        return connection;
+    }
+
+    @Test
+    public void reuseConnection_whenItIsReturned() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(ConnectionPoolTest::validConnection, 2, 0, 100, 1, 500);
+
+        Connection first;
+        try (PooledConnection conn = pool.borrow()) {
+            first = conn.getConnection();
+        }
+        try (PooledConnection conn = pool.borrow()) {
+            assertSame(first, conn.getConnection());
+        }
+        assertEquals(1, pool.getStats().getCreated());
+        assertEquals(2, pool.getStats().getBorrowed());
+    }
+
+    @Test
+    public void openMinIdleConnections_whenPrewarmed() {
+        ConnectionPool pool = new ConnectionPool(ConnectionPoolTest::validConnection, 5, 3, 100, 1, 500);
+
+        assertEquals(3, pool.prewarm());
+        assertEquals(3, pool.getStats().getIdle());
+        assertEquals(0, pool.prewarm());
+    }
+
+    @Test
+    public void throwTimeout_whenPoolIsExhausted() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(ConnectionPoolTest::validConnection, 1, 0, 50, 1, 500);
+
+        try (PooledConnection conn = pool.borrow()) {
+            assertThrows(SQLTimeoutException.class, pool::borrow);
+        }
+        assertEquals(1, pool.getStats().getTimeouts());
+    }
+
+    @Test
+    public void replaceConnection_whenValidationFails() throws SQLException {
+        Connection broken = mock(Connection.class);
+        when(broken.isValid(anyInt())).thenReturn(false);
+        when(broken.getAutoCommit()).thenReturn(true);
+        Connection healthy = validConnection();
+        Connection[] connections = { broken, healthy };
+        int[] next = { 0 };
+        // validate every idle connection
+        ConnectionPool pool = new ConnectionPool(() -> connections[next[0]++], 1, 0, 50, 1, -1);
+
+        pool.borrow().close();
+        try (PooledConnection conn = pool.borrow()) {
+            assertNotSame(broken, conn.getConnection());
+        }
+        verify(broken).close();
+        assertEquals(1, pool.getStats().getValidationFailures());
+        assertEquals(1, pool.getStats().getTotal());
+    }
+
+    @Test
+    public void rollbackTransaction_whenConnectionIsReturned() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(connection.getAutoCommit()).thenReturn(false);
+        ConnectionPool pool = new ConnectionPool(() -> connection, 1, 0, 50, 1, 500);
+
+        pool.borrow().close();
+
+        verify(connection).rollback();
+        verify(connection).setAutoCommit(true);
+    }
+
+    @Test
+    public void reuseStatement_whenSameSqlIsPrepared() throws SQLException {
+        Connection connection = validConnection();
+        when(connection.prepareStatement(anyString())).thenAnswer(invocation -> mock(PreparedStatement.class));
+        ConnectionPool pool = new ConnectionPool(() -> connection, 1, 0, 50, 1, 500);
+        String sql = "select * from users where user_id=?";
+
+        PreparedStatement first;
+        try (PooledConnection conn = pool.borrow()) {
+            first = conn.prepareStatement(sql);
+        }
+        try (PooledConnection conn = pool.borrow()) {
+            assertSame(first, conn.prepareStatement(sql));
+        }
+        verify(connection, times(1)).prepareStatement(sql);
+        assertEquals(1, pool.getStats().getStatementCacheHits());
+        assertEquals(1, pool.getStats().getStatementCacheMisses());
+    }
+
+    @Test
+    public void closeEldestStatement_whenCacheIsFull() throws SQLException {
+        Connection connection = validConnection();
+        when(connection.prepareStatement(anyString())).thenAnswer(invocation -> mock(PreparedStatement.class));
+        ConnectionPool pool = new ConnectionPool(() -> connection, 1, 0, 50, 1, 500);
+        pool.setStatementCacheSize(1);
+
+        try (PooledConnection conn = pool.borrow()) {
+            PreparedStatement eldest = conn.prepareStatement("select 1");
+            conn.prepareStatement("select 2");
+            verify(eldest).close();
+        }
+    }
+
+    @Test
+    public void closeStatementOnRelease_whenCacheSizeIsZero() throws SQLException {
+        Connection connection = validConnection();
+        when(connection.prepareStatement(anyString())).thenAnswer(invocation -> mock(PreparedStatement.class));
+        ConnectionPool pool = new ConnectionPool(() -> connection, 1, 0, 50, 1, 500);
+        pool.setStatementCacheSize(0);
+
+        PreparedStatement first;
+        try (PooledConnection conn = pool.borrow()) {
+            first = conn.prepareStatement("select 1");
+            verify(first, never()).close();
+            assertNotSame(first, conn.prepareStatement("select 1"));
+        }
+        verify(first).close();
+        verify(connection, times(2)).prepareStatement("select 1");
+    }
+}
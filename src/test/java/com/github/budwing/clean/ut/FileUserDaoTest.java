@@ -0,0 +1,277 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.budwing.User;
+
+public class FileUserDaoTest {
+    @TempDir
+    Path directory;
+    private FileUserDao userDao;
+
+    @BeforeEach
+    public void setUp() {
+        userDao = open();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        userDao.close();
+    }
+
+    private FileUserDao open() {
+        return new FileUserDao(directory, 60000, 50, 1 << 20);
+    }
+
+    private FileUserDao reopen() {
+        userDao.close();
+        userDao = open();
+        return userDao;
+    }
+
+    @Test
+    public void returnUser_whenCredentialsMatch() {
+        userDao.insert(UserDaoTest.newUser("1"));
+
+        User user = userDao.selectBy("user_1", "password_1");
+
+        assertNotNull(user);
+        assertEquals("1", user.getUserId());
+        assertEquals(userDao.hashPassword("password_1"), user.getPassword());
+        assertNull(userDao.selectBy("user_1", "wrong"));
+    }
+
+    @Test
+    public void throwException_whenUserIdOrUsernameIsTaken() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        User sameName = UserDaoTest.newUser("2");
+        sameName.setUsername("user_1");
+
+        assertThrows(RuntimeException.class, () -> userDao.insert(UserDaoTest.newUser("1")));
+        assertThrows(RuntimeException.class, () -> userDao.insert(sameName));
+        assertNull(userDao.selectById("2"));
+    }
+
+    @Test
+    public void replaceUserAndRenameIt_whenUpserted() {
+        User user = UserDaoTest.newUser("1");
+        assertTrue(userDao.upsert(user));
+        User renamed = UserDaoTest.newUser("1");
+        renamed.setUsername("renamed");
+        renamed.setCreatedAt(new Date(0));
+
+        assertTrue(userDao.upsert(renamed));
+
+        assertNull(reopen().selectBy("user_1", "password_1"));
+        User reopened = userDao.selectBy("renamed", "password_1");
+        assertEquals(user.getCreatedAt(), reopened.getCreatedAt());
+        assertEquals(1, userDao.size());
+    }
+
+    @Test
+    public void changeNothing_whenUpsertedNameBelongsToAnotherUser() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        userDao.insert(UserDaoTest.newUser("2"));
+        User sameName = UserDaoTest.newUser("3");
+        sameName.setUsername("user_1");
+        User renamed = UserDaoTest.newUser("2");
+        renamed.setUsername("user_1");
+
+        assertFalse(userDao.upsert(sameName));
+        assertThrows(RuntimeException.class, () -> userDao.upsert(renamed));
+        assertNull(userDao.selectById("3"));
+        assertEquals("user_2", userDao.selectById("2").getUsername());
+    }
+
+    @Test
+    public void keepAllFields_whenReopened() {
+        User user = UserDaoTest.newUser("1");
+        user.setEmail("one@example.com");
+        user.setBalance(12.5);
+        user.setLoginTimes(3);
+        userDao.insert(user);
+        userDao.insert(UserDaoTest.newUser("2"));
+        userDao.debit("1", 2.5);
+        userDao.deleteById("2");
+
+        User reopened = reopen().selectById("1");
+
+        assertEquals("user_1", reopened.getUsername());
+        assertEquals("one@example.com", reopened.getEmail());
+        assertEquals(10.0, reopened.getBalance());
+        assertEquals(3, reopened.getLoginTimes());
+        assertEquals(user.getCreatedAt(), reopened.getCreatedAt());
+        assertNull(userDao.selectById("2"));
+        assertEquals(1, userDao.size());
+    }
+
+    @Test
+    public void ignoreTornRecord_whenReopened() throws Exception {
+        userDao.insert(UserDaoTest.newUser("1"));
+        userDao.insert(UserDaoTest.newUser("2"));
+        userDao.close();
+        Path data = directory.resolve("users.dat");
+        long secondRecord = findSecondRecord(data);
+        try (RandomAccessFile file = new RandomAccessFile(data.toFile(), "rw")) {
+            // break the crc of the second record as a crash in the middle of it would
+            file.seek(secondRecord + 4);
+            file.writeInt(0);
+        }
+
+        userDao = open();
+
+        assertNotNull(userDao.selectById("1"));
+        assertNull(userDao.selectById("2"));
+        assertTrue(userDao.insert(UserDaoTest.newUser("3")));
+        assertNotNull(reopen().selectById("3"));
+    }
+
+    private static long findSecondRecord(Path data) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(data.toFile(), "r")) {
+            return 8 + file.readInt();
+        }
+    }
+
+    @Test
+    public void debitOnlyCoveredAmount_whenPasswordMatches() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        userDao.update(withBalance(userDao.selectById("1"), 100.0));
+
+        assertFalse(userDao.debitBy("user_1", "wrong", 10));
+        assertFalse(userDao.debitBy("user_1", "password_1", 101));
+        assertTrue(userDao.debitBy("user_1", "password_1", 60));
+        assertEquals(40.0, userDao.selectById("1").getBalance());
+    }
+
+    private static User withBalance(User user, double balance) {
+        user.setBalance(balance);
+        return user;
+    }
+
+    @Test
+    public void reportOutcomePerUser_whenLoginTimesAreIncremented() {
+        userDao.insert(UserDaoTest.newUser("1"));
+
+        List<BatchOutcome> outcomes = userDao.incrementLoginTimes(Map.of("1", 3));
+        List<BatchOutcome> missing = userDao.incrementLoginTimes(Map.of("2", 1));
+
+        assertEquals(List.of(BatchOutcome.SUCCESS), outcomes);
+        assertEquals(List.of(BatchOutcome.NO_CHANGE), missing);
+        assertEquals(3, userDao.selectById("1").getLoginTimes());
+    }
+
+    @Test
+    public void deleteOnlyMatchingUser_whenDeletedByCredentials() {
+        userDao.insert(UserDaoTest.newUser("1"));
+
+        assertFalse(userDao.deleteBy("user_1", "wrong"));
+        assertTrue(userDao.deleteBy("user_1", "password_1"));
+        assertNull(userDao.selectBy("user_1", "password_1"));
+        assertTrue(userDao.insert(UserDaoTest.newUser("1")));
+    }
+
+    @Test
+    public void keepUsersAndShrinkFile_whenCompacted() throws Exception {
+        userDao.insertAll(IntStream.range(0, 100).mapToObj(i -> UserDaoTest.newUser(String.valueOf(i)))
+                .collect(Collectors.toList()));
+        for (int i = 0; i < 50; i++) {
+            userDao.deleteById(String.valueOf(i));
+        }
+        for (int i = 50; i < 100; i++) {
+            userDao.incrementLoginTimes(Map.of(String.valueOf(i), 1));
+        }
+        assertTrue(userDao.getGarbageRatio() > 0.5);
+
+        userDao.compact();
+
+        assertEquals(0.0, userDao.getGarbageRatio());
+        assertEquals(50, userDao.size());
+        assertNull(userDao.selectById("0"));
+        assertEquals(1, userDao.selectBy("user_99", "password_99").getLoginTimes());
+        assertTrue(userDao.insert(UserDaoTest.newUser("0")));
+        assertEquals(51, reopen().size());
+        assertFalse(Files.exists(directory.resolve("users.dat.compact")));
+    }
+
+    @Test
+    public void keepScanning_whenCompactedDuringScan() {
+        for (String id : List.of("1", "2", "3")) {
+            userDao.insert(UserDaoTest.newUser(id));
+        }
+        userDao.deleteById("2");
+
+        try (Stream<User> users = userDao.scan()) {
+            Iterator<User> iterator = users.iterator();
+            assertEquals("1", iterator.next().getUserId());
+            userDao.compact();
+            assertEquals("3", iterator.next().getUserId());
+            assertFalse(iterator.hasNext());
+        }
+        assertEquals(0.0, userDao.getGarbageRatio());
+    }
+
+    @Test
+    public void growIndexAndDataFile_whenManyUsersAreInserted() {
+        List<User> users = IntStream.range(0, 20000).mapToObj(i -> {
+            User user = UserDaoTest.newUser(String.valueOf(i));
+            user.setEmail("x".repeat(100));
+            return user;
+        }).collect(Collectors.toList());
+
+        userDao.insertAll(users);
+
+        assertEquals(20000, userDao.size());
+        assertNotNull(userDao.selectBy("user_19999", "password_19999"));
+        assertEquals(20000, reopen().scan().count());
+    }
+
+    @Test
+    public void returnPagesInUserIdOrder_whenPaged() {
+        for (String id : List.of("c", "a", "b")) {
+            userDao.insert(UserDaoTest.newUser(id));
+        }
+
+        List<User> first = userDao.selectPage(null, 2);
+        List<User> second = userDao.selectPage("b", 2);
+
+        assertEquals(List.of("a", "b"), first.stream().map(User::getUserId).collect(Collectors.toList()));
+        assertEquals(List.of("c"), second.stream().map(User::getUserId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void returnPagesInCreatedAtOrder_whenPagedByCreatedAt() {
+        for (String id : List.of("a", "b", "c")) {
+            User user = UserDaoTest.newUser(id);
+            user.setCreatedAt(new Date(id.equals("a") ? 2000 : 1000));
+            userDao.insert(user);
+        }
+        userDao.incrementLoginTimes(Map.of("b", 1));
+
+        List<User> first = userDao.selectPageByCreatedAt(null, null, 2);
+        List<User> second = userDao.selectPageByCreatedAt(new Date(1000), "c", 2);
+
+        assertEquals(List.of("b", "c"), first.stream().map(User::getUserId).collect(Collectors.toList()));
+        assertEquals(List.of("a"), second.stream().map(User::getUserId).collect(Collectors.toList()));
+    }
+}
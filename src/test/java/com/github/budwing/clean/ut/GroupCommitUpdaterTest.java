@@ -0,0 +1,97 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.budwing.User;
+
+public class GroupCommitUpdaterTest {
+
+    @Test
+    public void commitUpdatesTogether_whenTheyArriveWithinMaxDelay() {
+        InMemoryUserDao userDao = new InMemoryUserDao();
+        for (int i = 0; i < 10; i++) {
+            userDao.insert(UserDaoTest.newUser(String.valueOf(i)));
+        }
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+
+        try (GroupCommitUpdater updater = new GroupCommitUpdater(userDao, 500, 100, 100)) {
+            for (int i = 0; i < 10; i++) {
+                User user = userDao.selectById(String.valueOf(i));
+                user.setBalance((double) i);
+                futures.add(updater.update(user));
+            }
+            futures.forEach(future -> assertTrue(future.join()));
+
+            assertEquals(1, updater.getCommits());
+            assertEquals(10, updater.getUpdates());
+        }
+        assertEquals(7.0, userDao.selectById("7").getBalance());
+    }
+
+    @Test
+    public void startNewGroup_whenGroupIsFull() {
+        InMemoryUserDao userDao = new InMemoryUserDao();
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+
+        try (GroupCommitUpdater updater = new GroupCommitUpdater(userDao, 500, 2, 100)) {
+            for (int i = 0; i < 4; i++) {
+                futures.add(updater.update(UserDaoTest.newUser(String.valueOf(i))));
+            }
+            futures.forEach(future -> assertFalse(future.join()));
+
+            assertEquals(2, updater.getCommits());
+        }
+    }
+
+    @Test
+    public void failOnlyBadUpdate_whenGroupFails() {
+        UserDao userDao = mock(UserDao.class);
+        User good = UserDaoTest.newUser("1");
+        User bad = UserDaoTest.newUser("2");
+        when(userDao.updateAll(anyCollection())).thenReturn(List.of(BatchOutcome.FAILED, BatchOutcome.FAILED));
+        when(userDao.update(any(User.class))).thenAnswer(invocation -> {
+            if ("2".equals(invocation.<User>getArgument(0).getUserId())) {
+                throw new RuntimeException("bad row");
+            }
+            return true;
+        });
+
+        try (GroupCommitUpdater updater = new GroupCommitUpdater(userDao, 500, 2, 100)) {
+            CompletableFuture<Boolean> goodFuture = updater.update(good);
+            CompletableFuture<Boolean> badFuture = updater.update(bad);
+
+            assertTrue(goodFuture.join());
+            assertThrows(CompletionException.class, badFuture::join);
+            assertEquals(1, updater.getRetriedGroups());
+        }
+    }
+
+    @Test
+    public void writeAtOnce_whenUpdaterIsClosed() {
+        InMemoryUserDao userDao = new InMemoryUserDao();
+        userDao.insert(UserDaoTest.newUser("1"));
+        GroupCommitUpdater updater = new GroupCommitUpdater(userDao, 500, 100, 100);
+        updater.close();
+        User user = userDao.selectById("1");
+        user.setLoginTimes(5);
+
+        CompletableFuture<Boolean> future = updater.update(user);
+
+        assertTrue(future.isDone());
+        assertEquals(5, userDao.selectById("1").getLoginTimes());
+    }
+}
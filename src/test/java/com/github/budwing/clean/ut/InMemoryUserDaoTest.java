@@ -0,0 +1,147 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.github.budwing.User;
+
+/**
+ * The in-memory backend needs no database, so unlike UserDaoTest nothing is
+ * skipped.
+ */
+public class InMemoryUserDaoTest {
+    private InMemoryUserDao userDao;
+
+    @BeforeEach
+    public void setUp() {
+        userDao = new InMemoryUserDao();
+    }
+
+    @Test
+    public void returnUser_whenCredentialsMatch() {
+        userDao.insert(UserDaoTest.newUser("1"));
+
+        User user = userDao.selectBy("user_1", "password_1");
+
+        assertNotNull(user);
+        assertEquals(userDao.hashPassword("password_1"), user.getPassword());
+        assertNull(userDao.selectBy("user_1", "wrong"));
+    }
+
+    @Test
+    public void throwException_whenUsernameIsTaken() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        User sameName = UserDaoTest.newUser("2");
+        sameName.setUsername("user_1");
+
+        assertThrows(RuntimeException.class, () -> userDao.insert(sameName));
+        assertNull(userDao.selectById("2"));
+    }
+
+    @Test
+    public void insertNewAndReplaceExistingUsers_whenUpserted() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        User changed = UserDaoTest.newUser("1");
+        changed.setUsername("renamed");
+        changed.setBalance(42.0);
+        User sameName = UserDaoTest.newUser("3");
+        sameName.setUsername("renamed");
+
+        List<BatchOutcome> outcomes = userDao.upsertAll(List.of(changed, UserDaoTest.newUser("2"), sameName));
+
+        assertEquals(List.of(BatchOutcome.SUCCESS, BatchOutcome.SUCCESS, BatchOutcome.NO_CHANGE), outcomes);
+        assertEquals(42.0, userDao.selectBy("renamed", "password_1").getBalance());
+        assertNull(userDao.selectBy("user_1", "password_1"));
+        assertNull(userDao.selectById("3"));
+        assertEquals(2, userDao.size());
+    }
+
+    @Test
+    public void keepStoreUnchanged_whenReturnedUserIsChanged() {
+        userDao.insert(UserDaoTest.newUser("1"));
+
+        userDao.selectById("1").setBalance(1000.0);
+
+        assertEquals(0.0, userDao.selectById("1").getBalance());
+    }
+
+    @Test
+    public void neverOverdraw_whenDebitedConcurrently() throws InterruptedException {
+        User user = UserDaoTest.newUser("1");
+        user.setBalance(100.0);
+        userDao.insert(user);
+        AtomicInteger debited = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        for (int i = 0; i < 200; i++) {
+            executor.execute(() -> {
+                if (userDao.debitBy("user_1", "password_1", 1.0)) {
+                    debited.incrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(100, debited.get());
+        assertEquals(0.0, userDao.selectById("1").getBalance());
+    }
+
+    @Test
+    public void returnPagesInIdOrder() {
+        userDao.insertAll(List.of(UserDaoTest.newUser("3"), UserDaoTest.newUser("1"), UserDaoTest.newUser("2")));
+
+        List<User> first = userDao.selectPage(null, 2);
+        List<User> second = userDao.selectPage(first.get(1).getUserId(), 2);
+
+        assertEquals(List.of("1", "2"), first.stream().map(User::getUserId).collect(Collectors.toList()));
+        assertEquals(List.of("3"), second.stream().map(User::getUserId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void removeFromAllIndexes_whenDeleted() {
+        userDao.insert(UserDaoTest.newUser("1"));
+
+        assertFalse(userDao.deleteBy("user_1", "wrong"));
+        assertTrue(userDao.deleteBy("user_1", "password_1"));
+
+        assertNull(userDao.selectById("1"));
+        assertEquals(0, userDao.scan().count());
+        assertTrue(userDao.insert(UserDaoTest.newUser("1")));
+    }
+
+    @Test
+    public void addLoginTimes_whenIncremented() {
+        userDao.insert(UserDaoTest.newUser("1"));
+
+        List<BatchOutcome> outcomes = userDao.incrementLoginTimes(Map.of("1", 3));
+
+        assertEquals(List.of(BatchOutcome.SUCCESS), outcomes);
+        assertEquals(3, userDao.selectById("1").getLoginTimes());
+    }
+
+    @Test
+    public void serveUserService_withoutDatabase() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        UserService userService = new UserService();
+        userService.setUserDao(userDao);
+
+        assertNotNull(userService.login("user_1", "password_1"));
+        assertNull(userService.login("user_1", "wrong"));
+    }
+}
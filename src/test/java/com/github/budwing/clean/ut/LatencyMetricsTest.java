@@ -0,0 +1,136 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyMetricsTest {
+
+    @Test
+    public void keepValueWithinItsBucket_whenValueIsRecorded() {
+        for (long value : new long[] { 0, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE / 2 }) {
+            int bucket = LatencyHistogram.bucket(value);
+
+            assertTrue(LatencyHistogram.highestValue(bucket) >= value);
+            assertTrue(bucket == 0 || LatencyHistogram.highestValue(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void reportPercentilesWithinPrecision_whenManyValuesAreRecorded() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int micros = 1; micros <= 1000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500.5, snapshot.getMeanMicros(), 0.01);
+        assertEquals(500, snapshot.percentileMicros(0.5), 500 / 16.0);
+        assertEquals(990, snapshot.percentileMicros(0.99), 990 / 16.0);
+        assertEquals(999, snapshot.percentileMicros(0.999), 999 / 16.0);
+        assertEquals(1000, snapshot.percentileMicros(1), 1000 / 16.0);
+    }
+
+    @Test
+    public void countOnlyNewValues_whenSnapshotsAreSubtracted() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(1000);
+        LatencyHistogram.Snapshot earlier = histogram.snapshot();
+        histogram.record(1_000_000);
+
+        LatencyHistogram.Snapshot interval = histogram.snapshot().minus(earlier);
+
+        assertEquals(1, interval.getCount());
+        assertEquals(1000, interval.percentileMicros(0.5), 1000 / 16.0);
+    }
+
+    @Test
+    public void recordEveryPhase_whenOperationIsTimed() {
+        LatencyMetrics metrics = new LatencyMetrics(true, false);
+
+        try (LatencyMetrics.Operation op = metrics.start("Test.run")) {
+            op.acquired();
+            op.executed();
+            op.mapped();
+        }
+
+        assertEquals(Set.of("Test.run.acquire", "Test.run.execute", "Test.run.map", "Test.run.total"),
+                metrics.getHistograms().keySet());
+        metrics.getHistograms().values().forEach(histogram -> assertEquals(1, histogram.getCount()));
+    }
+
+    @Test
+    public void recordNothing_whenDisabled() {
+        LatencyMetrics metrics = new LatencyMetrics(false, false);
+
+        try (LatencyMetrics.Operation op = metrics.start("Test.run")) {
+            op.acquired();
+        }
+
+        assertTrue(metrics.getHistograms().isEmpty());
+    }
+
+    @Test
+    public void shareOneOperation_whenDisabled() {
+        LatencyMetrics metrics = new LatencyMetrics(false, false);
+
+        LatencyMetrics.Operation op = metrics.start("Test.run");
+        op.statement("select 1", ps -> { });
+        op.rows(1);
+
+        assertSame(op, metrics.start("Test.other"));
+        assertSame(op, new LatencyMetrics(false, false).start("Test.run"));
+    }
+
+    @Test
+    public void recordPhasesOfDaoMethod_whenUserIsSelected() throws SQLException {
+        Connection connection = UserDaoTest.mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        ResultSet rs = UserDaoTest.mockedResultSet(1);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeQuery()).thenReturn(rs);
+        UserDao userDao = UserDaoTest.userDaoWith(connection);
+        LatencyMetrics metrics = new LatencyMetrics(true, false);
+        userDao.setLatencyMetrics(metrics);
+
+        userDao.selectById("id_1");
+
+        Map<String, LatencyHistogram> histograms = metrics.getHistograms();
+        assertEquals(Set.of("UserDao.selectById.acquire", "UserDao.selectById.execute", "UserDao.selectById.map",
+                "UserDao.selectById.total"), histograms.keySet());
+        assertEquals(1, histograms.get("UserDao.selectById.total").getCount());
+    }
+
+    @Test
+    public void exposeHistogramOverJmx_whenJmxIsOn() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.github.budwing:type=Latency,name=JmxTest.run.total");
+        LatencyMetrics metrics = new LatencyMetrics(true, true);
+
+        metrics.start("JmxTest.run").close();
+
+        assertEquals(1L, server.getAttribute(name, "Count"));
+        metrics.close();
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+public class LocalCacheTest {
+
+    @Test
+    public void evictLeastRecentlyUsed_whenLruCacheIsFull() {
+        LocalCache<String, String> cache = new LocalCache<>(2, 60000, LocalCache.EvictionPolicy.LRU);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+
+        cache.put("c", "C");
+
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getStats().getEvictions());
+    }
+
+    @Test
+    public void evictLeastFrequentlyUsed_whenLfuCacheIsFull() {
+        LocalCache<String, String> cache = new LocalCache<>(2, 60000, LocalCache.EvictionPolicy.LFU);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        cache.put("c", "C");
+
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("C", cache.get("c"));
+    }
+
+    @Test
+    public void returnNull_whenEntryOutlivesTtl() {
+        long[] now = { 0 };
+        LocalCache<String, String> cache = new LocalCache<>(2, 10, LocalCache.EvictionPolicy.LRU, () -> now[0]);
+        cache.put("a", "A");
+
+        now[0] = 10_000_000;
+
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getStats().getExpirations());
+    }
+
+    @Test
+    public void rejectLoadedValue_whenInvalidatedDuringLoad() {
+        LocalCache<String, String> cache = new LocalCache<>(2, 60000, LocalCache.EvictionPolicy.LRU);
+        long stamp = cache.stamp();
+
+        cache.invalidate("a");
+
+        assertFalse(cache.putIfNotInvalidated("a", "stale", stamp));
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void reportHitRatio() {
+        LocalCache<String, String> cache = new LocalCache<>(2, 60000, LocalCache.EvictionPolicy.LRU);
+        cache.put("a", "A");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(0.5, cache.getStats().getHitRatio());
+    }
+
+    @Test
+    public void invalidateOnlyIndexedEntries_whenIndexKeyIsInvalidated() {
+        LocalCache<String, String> cache = new LocalCache<>(10, 60000, LocalCache.EvictionPolicy.LFU);
+        cache.indexBy(value -> value.substring(0, 1));
+        cache.put("1", "A1");
+        cache.put("2", "A2");
+        cache.put("3", "B3");
+        cache.get("1");
+
+        cache.invalidateIndexed("A");
+
+        assertNull(cache.get("1"));
+        assertNull(cache.get("2"));
+        assertEquals("B3", cache.get("3"));
+        assertEquals(1, cache.getStats().getSize());
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class LoginTimesWriteBehindTest {
+    @Mock
+    private UserDao userDao;
+
+    @Test
+    public void coalesceIncrements_whenUserLogsInRepeatedly() {
+        try (LoginTimesWriteBehind writeBehind = new LoginTimesWriteBehind(userDao, 100, 100, 60000)) {
+            writeBehind.increment("1");
+            writeBehind.increment("1");
+            writeBehind.increment("2");
+
+            assertEquals(2, writeBehind.flush());
+
+            verify(userDao).incrementLoginTimes(Map.of("1", 2, "2", 1));
+            assertEquals(3, writeBehind.getStats().getRecordedLogins());
+            assertEquals(2, writeBehind.getStats().getFlushedRows());
+            assertEquals(0, writeBehind.getStats().getPendingUsers());
+        }
+    }
+
+    @Test
+    public void keepIncrements_whenFlushFails() {
+        try (LoginTimesWriteBehind writeBehind = new LoginTimesWriteBehind(userDao, 100, 100, 60000)) {
+            when(userDao.incrementLoginTimes(anyMap())).thenThrow(new RuntimeException("database is down"))
+                    .thenReturn(List.of(BatchOutcome.SUCCESS));
+            writeBehind.increment("1");
+
+            assertThrows(RuntimeException.class, writeBehind::flush);
+            assertEquals(1, writeBehind.getStats().getPendingUsers());
+            assertEquals(1, writeBehind.flush());
+        }
+    }
+
+    @Test
+    public void keepIncrements_whenBatchFails() {
+        try (LoginTimesWriteBehind writeBehind = new LoginTimesWriteBehind(userDao, 100, 100, 60000)) {
+            when(userDao.incrementLoginTimes(anyMap())).thenReturn(List.of(BatchOutcome.FAILED))
+                    .thenReturn(List.of(BatchOutcome.SUCCESS));
+            writeBehind.increment("1");
+
+            assertEquals(0, writeBehind.flush());
+            assertEquals(1, writeBehind.getStats().getPendingUsers());
+            assertEquals(1, writeBehind.getStats().getFailedFlushes());
+            assertEquals(0, writeBehind.getStats().getFlushedRows());
+            assertEquals(1, writeBehind.flush());
+            verify(userDao, times(2)).incrementLoginTimes(Map.of("1", 1));
+        }
+    }
+
+    @Test
+    public void dropLoginOfNewUser_whenTooManyUsersArePending() throws InterruptedException {
+        when(userDao.incrementLoginTimes(anyMap())).thenThrow(new RuntimeException("database is down"));
+        try (LoginTimesWriteBehind writeBehind = new LoginTimesWriteBehind(userDao, 2, 2, 60000)) {
+            writeBehind.increment("1");
+            writeBehind.increment("2");
+            // the flush started by the second user fails and puts both back
+            long deadline = System.currentTimeMillis() + 5000;
+            while (writeBehind.getStats().getFailedFlushes() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            writeBehind.increment("3");
+            writeBehind.increment("1");
+
+            assertEquals(1, writeBehind.getStats().getDroppedLogins());
+            assertEquals(3, writeBehind.getStats().getRecordedLogins());
+        }
+    }
+
+    @Test
+    public void queueOneFlush_whenLoginsArriveDuringSlowFlush() throws InterruptedException {
+        CountDownLatch flushStarted = new CountDownLatch(1);
+        CountDownLatch databaseAnswers = new CountDownLatch(1);
+        when(userDao.incrementLoginTimes(anyMap())).thenAnswer(invocation -> {
+            flushStarted.countDown();
+            databaseAnswers.await();
+            return List.of(BatchOutcome.SUCCESS);
+        });
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        try (LoginTimesWriteBehind writeBehind = new LoginTimesWriteBehind(userDao, 1, 1000, 60000, scheduler)) {
+            writeBehind.increment("0");
+            assertTrue(flushStarted.await(5, TimeUnit.SECONDS));
+
+            for (int i = 1; i <= 100; i++) {
+                writeBehind.increment(String.valueOf(i));
+                writeBehind.increment(String.valueOf(i));
+            }
+
+            // the timer and one flush
+            assertEquals(2, scheduler.getQueue().size());
+            databaseAnswers.countDown();
+        }
+        verify(userDao, times(2)).incrementLoginTimes(anyMap());
+    }
+
+    @Test
+    public void flushPendingIncrements_whenClosed() {
+        LoginTimesWriteBehind writeBehind = new LoginTimesWriteBehind(userDao, 100, 100, 60000);
+        writeBehind.increment("1");
+        verify(userDao, never()).incrementLoginTimes(anyMap());
+
+        writeBehind.close();
+
+        verify(userDao).incrementLoginTimes(Map.of("1", 1));
+    }
+}
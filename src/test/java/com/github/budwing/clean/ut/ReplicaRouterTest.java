@@ -0,0 +1,90 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ReplicaRouterTest {
+
+    private static ConnectionPool poolOf(Connection connection) {
+        return new ConnectionPool(() -> connection, 1, 0, 50, 1, 500);
+    }
+
+    private static ConnectionPool brokenPool() {
+        return new ConnectionPool(() -> {
+            throw new SQLException("Communications link failure");
+        }, 1, 0, 50, 1, 500);
+    }
+
+    @Test
+    public void balanceReads_whenReplicasAreHealthy() throws SQLException {
+        Connection first = UserDaoTest.mockedConnection();
+        Connection second = UserDaoTest.mockedConnection();
+        ReplicaRouter router = new ReplicaRouter(List.of(poolOf(first), poolOf(second)), 1000);
+
+        try (PooledConnection conn = router.borrow()) {
+            assertSame(first, conn.getConnection());
+        }
+        try (PooledConnection conn = router.borrow()) {
+            assertSame(second, conn.getConnection());
+        }
+    }
+
+    @Test
+    public void ejectReplica_whenItFails() throws SQLException {
+        Connection healthy = UserDaoTest.mockedConnection();
+        ReplicaRouter router = new ReplicaRouter(List.of(brokenPool(), poolOf(healthy)), 60000);
+
+        for (int i = 0; i < 3; i++) {
+            try (PooledConnection conn = router.borrow()) {
+                assertSame(healthy, conn.getConnection());
+            }
+        }
+        assertEquals(1, router.getEjections());
+        assertEquals(1, router.getHealthyReplicas());
+    }
+
+    @Test
+    public void returnNull_whenNoReplicaIsHealthy() {
+        ReplicaRouter router = new ReplicaRouter(List.of(brokenPool()), 60000);
+
+        assertNull(router.borrow());
+        assertNull(router.borrow());
+        assertEquals(1, router.getEjections());
+    }
+
+    @Test
+    public void skipBusyReplicaWithoutWaiting_whenItHasNoFreeConnection() throws SQLException {
+        ConnectionPool busy = new ConnectionPool(UserDaoTest::mockedConnection, 1, 0, 5000, 1, 500);
+        ReplicaRouter router = new ReplicaRouter(List.of(busy), 60000);
+
+        try (PooledConnection held = busy.borrow()) {
+            long start = System.currentTimeMillis();
+            assertNull(router.borrow());
+            assertTrue(System.currentTimeMillis() - start < 1000);
+        }
+        assertEquals(0, router.getEjections());
+    }
+
+    @Test
+    public void ejectReplica_whenItsQueryFails() throws SQLException {
+        ReplicaRouter router = new ReplicaRouter(List.of(poolOf(UserDaoTest.mockedConnection())), 60000);
+
+        try (PooledConnection conn = router.borrow()) {
+            router.failed(conn, new SQLSyntaxErrorException("You have an error in your SQL syntax"));
+            assertEquals(0, router.getEjections());
+            router.failed(conn, new SQLRecoverableException("Communications link failure"));
+        }
+        assertEquals(1, router.getEjections());
+        assertNull(router.borrow());
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SchemaBootstrapTest {
+    private Connection connection;
+    private SchemaBootstrap bootstrap;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        connection = UserDaoTest.mockedConnection();
+        bootstrap = new SchemaBootstrap(new ConnectionPool(() -> connection, 1, 0, 100, 1, 500),
+                SchemaBootstrap.loadSchema());
+    }
+
+    /**
+     * Each row is index_name, column_name.
+     */
+    private void givenIndexes(String[]... rows) throws SQLException {
+        PreparedStatement ps = mock(PreparedStatement.class);
+        when(connection.prepareStatement(contains("information_schema.statistics"))).thenReturn(ps);
+        ResultSet rs = rowsOf(rows);
+        when(ps.executeQuery()).thenReturn(rs);
+    }
+
+    private void givenPlan(Map<String, String> row) throws SQLException {
+        PreparedStatement ps = mock(PreparedStatement.class);
+        when(connection.prepareStatement(startsWith("explain "))).thenReturn(ps);
+        when(ps.executeQuery()).thenAnswer(invocation -> {
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.next()).thenReturn(true, false);
+            when(rs.getString(anyString())).thenAnswer(label -> row.get(label.<String>getArgument(0)));
+            return rs;
+        });
+    }
+
+    private static ResultSet rowsOf(String[]... rows) throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        int[] row = { -1 };
+        when(rs.next()).thenAnswer(invocation -> ++row[0] < rows.length);
+        when(rs.getString(anyInt())).thenAnswer(invocation -> rows[row[0]][invocation.<Integer>getArgument(0) - 1]);
+        return rs;
+    }
+
+    @Test
+    public void reportAllIndexes_whenTableHasNone() throws SQLException {
+        givenIndexes();
+
+        assertEquals(List.of("uk_users_user_name", "idx_users_created_at"), bootstrap.verifyIndexes());
+    }
+
+    @Test
+    public void reportIndex_whenItIsOnOtherColumns() throws SQLException {
+        givenIndexes(new String[] { "PRIMARY", "user_id" },
+                new String[] { "idx_users_created_at", "created_at" },
+                new String[] { "uk_users_user_name", "user_name" });
+
+        assertEquals(List.of("idx_users_created_at"), bootstrap.verifyIndexes());
+    }
+
+    @Test
+    public void createOnlyMissingIndexes_whenSchemaIsCreated() throws SQLException {
+        Statement statement = mock(Statement.class);
+        when(connection.createStatement()).thenReturn(statement);
+        givenIndexes(new String[] { "PRIMARY", "user_id" }, new String[] { "UK_USERS_USER_NAME", "user_name" });
+
+        bootstrap.createSchema();
+
+        verify(statement).execute(startsWith("create table if not exists users"));
+        verify(statement).execute(startsWith("create index idx_users_created_at"));
+        verify(statement, never()).execute(contains("uk_users_user_name"));
+    }
+
+    @Test
+    public void reportQueries_whenPlanScansTable() throws SQLException {
+        givenPlan(Map.of("table", "users", "type", "ALL"));
+
+        List<String> problems = bootstrap.checkQueryPlans();
+
+        assertEquals(7, problems.size());
+        assertTrue(problems.contains("UserDao.selectCredentialsBy"));
+    }
+
+    @Test
+    public void reportNothing_whenPlansUseIndexes() throws SQLException {
+        givenPlan(Map.of("table", "users", "type", "const", "key", "uk_users_user_name"));
+
+        assertTrue(bootstrap.checkQueryPlans().isEmpty());
+    }
+}
@@ -0,0 +1,234 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.github.budwing.User;
+
+/**
+ * The shards are in-memory backends, standing in for local database
+ * instances.
+ */
+public class ShardedUserDaoTest {
+    private List<InMemoryUserDao> shards;
+    private LocalCache<String, Integer> shardsByName;
+    private ShardedUserDao userDao;
+
+    @BeforeEach
+    public void setUp() {
+        shards = List.of(new InMemoryUserDao(), new InMemoryUserDao(), new InMemoryUserDao());
+        shardsByName = new LocalCache<>(100, 60000, LocalCache.EvictionPolicy.LRU);
+        userDao = new ShardedUserDao(new ArrayList<>(shards), shardsByName, 4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        userDao.close();
+    }
+
+    private void insertUsers(int count) {
+        userDao.insertAll(IntStream.range(0, count).mapToObj(i -> UserDaoTest.newUser(String.valueOf(i)))
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void storeEveryUserOnItsHashShard_whenUsersAreInserted() {
+        insertUsers(30);
+
+        assertEquals(30, shards.stream().mapToInt(InMemoryUserDao::size).sum());
+        for (int i = 0; i < 30; i++) {
+            String userId = String.valueOf(i);
+            assertNotNull(shards.get(userDao.shardOf(userId)).selectById(userId));
+            assertNotNull(userDao.selectById(userId));
+        }
+        assertTrue(shards.stream().allMatch(shard -> shard.size() > 0));
+    }
+
+    @Test
+    public void returnOutcomesInInputOrder_whenBatchSpansShards() {
+        insertUsers(5);
+
+        List<BatchOutcome> outcomes = userDao.insertAll(List.of(UserDaoTest.newUser("10"), UserDaoTest.newUser("3"),
+                UserDaoTest.newUser("11")));
+
+        assertEquals(List.of(BatchOutcome.SUCCESS, BatchOutcome.FAILED, BatchOutcome.SUCCESS), outcomes);
+    }
+
+    @Test
+    public void selectByNameOnCachedShard_whenUserWasInserted() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        int shard = userDao.shardOf("1");
+
+        assertEquals(shard, shardsByName.get("user_1"));
+        assertNotNull(userDao.selectBy("user_1", "password_1"));
+    }
+
+    @Test
+    public void findShardOfName_whenNameIsNotCached() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        shardsByName.invalidateAll();
+
+        User user = userDao.selectBy("user_1", "password_1");
+
+        assertNotNull(user);
+        assertEquals(userDao.shardOf("1"), shardsByName.get("user_1"));
+        assertNull(userDao.selectBy("user_1", "wrong"));
+    }
+
+    @Test
+    public void debitAndDeleteByName_whenCredentialsMatch() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        shardsByName.invalidateAll();
+
+        assertTrue(userDao.debitBy("user_1", "password_1", 0.0));
+        assertTrue(userDao.deleteBy("user_1", "password_1"));
+        assertNull(userDao.selectById("1"));
+        assertFalse(userDao.deleteBy("user_1", "password_1"));
+    }
+
+    @Test
+    public void writeOnlyCachedShard_whenDebitByNameFails() {
+        User user = UserDaoTest.newUser("1");
+        user.setBalance(10.0);
+        userDao.insert(user);
+        User sameName = UserDaoTest.newUser("other");
+        sameName.setUsername("user_1");
+        sameName.setPassword("password_1");
+        sameName.setBalance(100.0);
+        InMemoryUserDao otherShard = shards.get((userDao.shardOf("1") + 1) % shards.size());
+        otherShard.insert(sameName);
+
+        assertFalse(userDao.debitBy("user_1", "password_1", 50));
+        assertFalse(userDao.deleteBy("user_1", "wrong"));
+        assertEquals(100.0, otherShard.selectById("other").getBalance());
+        assertNotNull(userDao.selectById("1"));
+    }
+
+    @Test
+    public void askOnlyShardOfName_whenPasswordIsWrong() {
+        List<InMemoryUserDao> spied = shards.stream().map(Mockito::spy).collect(Collectors.toList());
+        try (ShardedUserDao spiedDao = new ShardedUserDao(new ArrayList<>(spied), shardsByName, 4)) {
+            spiedDao.insert(UserDaoTest.newUser("1"));
+            int shard = spiedDao.shardOf("1");
+            spied.forEach(Mockito::clearInvocations);
+
+            assertNull(spiedDao.selectBy("user_1", "wrong"));
+            assertFalse(spiedDao.debitBy("user_1", "wrong", 0.0));
+
+            for (int other = 0; other < spied.size(); other++) {
+                if (other != shard) {
+                    verify(spied.get(other), never()).selectBy(anyString(), anyString());
+                    verify(spied.get(other), never()).selectCredentialsBy(anyString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findShardOfName_whenCachedShardIsStale() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        int shard = userDao.shardOf("1");
+        shardsByName.put("user_1", (shard + 1) % shards.size());
+
+        assertTrue(userDao.debitBy("user_1", "password_1", 0.0));
+        assertEquals(shard, shardsByName.get("user_1"));
+        assertNotNull(userDao.selectCredentialsBy("user_1"));
+    }
+
+    @Test
+    public void rejectName_whenAnotherShardHasIt() {
+        userDao.insert(UserDaoTest.newUser("1"));
+        String otherId = IntStream.range(2, 100).mapToObj(String::valueOf)
+                .filter(id -> userDao.shardOf(id) != userDao.shardOf("1")).findFirst().get();
+        User sameName = UserDaoTest.newUser(otherId);
+        sameName.setUsername("user_1");
+
+        assertThrows(RuntimeException.class, () -> userDao.insert(sameName));
+        assertEquals(List.of(BatchOutcome.FAILED), userDao.insertAll(List.of(sameName)));
+        assertFalse(userDao.upsert(sameName));
+        assertEquals(List.of(BatchOutcome.NO_CHANGE), userDao.upsertAll(List.of(sameName)));
+        assertNull(userDao.selectById(otherId));
+        assertEquals("1", userDao.selectCredentialsBy("user_1").getUserId());
+    }
+
+    @Test
+    public void acceptOneRowOfName_whenBatchRepeatsIt() {
+        String otherId = IntStream.range(2, 100).mapToObj(String::valueOf)
+                .filter(id -> userDao.shardOf(id) != userDao.shardOf("1")).findFirst().get();
+        User sameName = UserDaoTest.newUser(otherId);
+        sameName.setUsername("user_1");
+
+        List<BatchOutcome> outcomes = userDao.insertAll(List.of(UserDaoTest.newUser("1"), sameName));
+
+        assertEquals(List.of(BatchOutcome.SUCCESS, BatchOutcome.FAILED), outcomes);
+        assertEquals("1", userDao.selectCredentialsBy("user_1").getUserId());
+    }
+
+    @Test
+    public void returnUsersOfAllShardsInOrder_whenIdsAreSelected() {
+        insertUsers(20);
+
+        Map<String, User> users = userDao.selectByIds(List.of("7", "missing", "0", "13"));
+
+        assertEquals(List.of("7", "missing", "0", "13"), new ArrayList<>(users.keySet()));
+        assertNull(users.get("missing"));
+        assertEquals("user_13", users.get("13").getUsername());
+    }
+
+    @Test
+    public void mergePagesOfAllShards_whenPagesAreSelected() {
+        insertUsers(20);
+        List<String> expected = IntStream.range(0, 20).mapToObj(String::valueOf).sorted()
+                .collect(Collectors.toList());
+
+        List<String> userIds = new ArrayList<>();
+        List<User> page = userDao.selectPage(null, 6);
+        while (!page.isEmpty()) {
+            page.forEach(user -> userIds.add(user.getUserId()));
+            page = userDao.selectPage(page.get(page.size() - 1).getUserId(), 6);
+        }
+
+        assertEquals(expected, userIds);
+    }
+
+    @Test
+    public void streamUsersOfAllShards_whenScanned() {
+        insertUsers(50);
+
+        try (Stream<User> users = userDao.scan()) {
+            assertEquals(50, users.map(User::getUserId).distinct().count());
+        }
+    }
+
+    @Test
+    public void stopReaders_whenScanIsClosedEarly() {
+        insertUsers(50);
+
+        try (Stream<User> users = userDao.scan()) {
+            assertEquals(3, users.limit(3).count());
+        }
+
+        try (Stream<User> users = userDao.scan()) {
+            assertEquals(50, users.count());
+        }
+    }
+}
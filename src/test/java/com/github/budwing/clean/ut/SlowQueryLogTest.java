@@ -0,0 +1,128 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class SlowQueryLogTest {
+
+    @Test
+    public void logStatementOfDaoMethod_whenThresholdIsCrossed() throws SQLException {
+        Connection connection = UserDaoTest.mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        ResultSet rs = UserDaoTest.mockedResultSet(1);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeQuery()).thenReturn(rs);
+        UserDao userDao = UserDaoTest.userDaoWith(connection);
+        LatencyMetrics metrics = new LatencyMetrics(false, false);
+        SlowQueryLog slowQueryLog = new SlowQueryLog(0, 10);
+        metrics.setSlowQueryLog(slowQueryLog);
+        metrics.start();
+        userDao.setLatencyMetrics(metrics);
+
+        userDao.selectBy("alice", "secret");
+        slowQueryLog.close();
+
+        assertEquals(1, slowQueryLog.getLogged());
+        assertTrue(metrics.getHistograms().isEmpty());
+    }
+
+    @Test
+    public void logNothing_whenOperationIsBelowThreshold() {
+        LatencyMetrics metrics = new LatencyMetrics(false, false);
+        SlowQueryLog slowQueryLog = new SlowQueryLog(60000, 10);
+        metrics.setSlowQueryLog(slowQueryLog);
+
+        try (LatencyMetrics.Operation op = metrics.start("Test.run")) {
+            op.acquired();
+            op.executed();
+        }
+        slowQueryLog.close();
+
+        assertEquals(0, slowQueryLog.getLogged());
+        assertEquals(0, slowQueryLog.getDropped());
+    }
+
+    @Test
+    public void logQueuedQuery_whenStartedAfterIt() {
+        LatencyMetrics metrics = new LatencyMetrics(false, false);
+        SlowQueryLog slowQueryLog = new SlowQueryLog(0, 10);
+        metrics.setSlowQueryLog(slowQueryLog);
+
+        metrics.start("Test.run").close();
+        assertEquals(0, slowQueryLog.getLogged());
+        metrics.start();
+        metrics.close();
+
+        assertEquals(1, slowQueryLog.getLogged());
+    }
+
+    @Test
+    public void redactPasswords_whenSlowQueryIsFormatted() {
+        SlowQueryLog slowQueryLog = new SlowQueryLog(0, 10);
+        String sql = "select user_id from users where user_name=? and password=?";
+
+        String line = slowQueryLog.format(new SlowQueryLog.SlowQuery("UserDao.selectBy", sql,
+                SlowQueryLog.capture(ps -> {
+                    ps.setString(1, "alice");
+                    ps.setString(2, "5e884898da28047151d0e56f8dc62927");
+                }), 1, 300_000_000, 1_000_000, 298_000_000, 1_000_000));
+        slowQueryLog.close();
+
+        assertTrue(line.startsWith("slow UserDao.selectBy 300.0ms (acquire 1.0ms, execute 298.0ms, map 1.0ms) rows=1"));
+        assertTrue(line.contains("parameters=[alice, " + SlowQueryLog.REDACTED + "]"));
+        assertFalse(line.contains("5e884898"));
+    }
+
+    @Test
+    public void redactPasswordColumnOfInsert_whenSlowQueryIsFormatted() {
+        SlowQueryLog slowQueryLog = new SlowQueryLog(0, 10);
+        String sql = "insert into users(user_id, user_name, password) values(?, ?, ?)";
+
+        String line = slowQueryLog.format(new SlowQueryLog.SlowQuery("UserDao.insert", sql,
+                List.of("id_1", "alice", "hash"), 1, 0, 0, 0, 0));
+        slowQueryLog.close();
+
+        assertTrue(line.contains("parameters=[id_1, alice, " + SlowQueryLog.REDACTED + "]"));
+    }
+
+    @Test
+    public void keepValuesBoundAtCapture_whenArgumentChangesLater() {
+        String[] username = { "alice" };
+
+        List<Object> captured = SlowQueryLog.capture(ps -> ps.setString(1, username[0]));
+        username[0] = "bob";
+
+        assertEquals(List.of("alice"), captured);
+    }
+
+    @Test
+    public void shareFingerprint_whenInListsDifferInLength() {
+        SlowQueryLog slowQueryLog = new SlowQueryLog(0, 10);
+
+        String two = slowQueryLog.format(new SlowQueryLog.SlowQuery("UserDao.selectByIds",
+                "select user_id from users where user_id in (?, ?)", null, 2, 0, 0, 0, 0));
+        String three = slowQueryLog.format(new SlowQueryLog.SlowQuery("UserDao.selectByIds",
+                "SELECT user_id FROM users WHERE user_id IN (?,?,?)", null, 3, 0, 0, 0, 0));
+        slowQueryLog.close();
+
+        assertEquals(fingerprint(two), fingerprint(three));
+        assertTrue(two.contains("sql=[select user_id from users where user_id in (?+)]"));
+    }
+
+    private static String fingerprint(String line) {
+        int start = line.indexOf("fingerprint=") + "fingerprint=".length();
+        return line.substring(start, line.indexOf(' ', start));
+    }
+}
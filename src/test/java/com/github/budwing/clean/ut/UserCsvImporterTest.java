@@ -0,0 +1,121 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class UserCsvImporterTest {
+    @TempDir
+    Path directory;
+
+    private Path write(List<String> lines) throws Exception {
+        Path csv = directory.resolve("users.csv");
+        Files.write(csv, lines, StandardCharsets.UTF_8);
+        return csv;
+    }
+
+    @Test
+    public void insertValidRowsAndRejectInvalidOnes_whenFileIsImported() throws Exception {
+        Path csv = write(List.of(
+                "user_id,username,password,email,balance",
+                "1,alice,secret1,alice@example.com,10.5",
+                "2,bob,short,bob@example.com",
+                "3,\"carol, jr\",secret3,carol@example.com",
+                "4,dave,secret4,not-an-email",
+                "5,erin,secret5,erin@example.com,lots",
+                "",
+                "6,frank,secret6,frank@example.com"));
+        InMemoryUserDao userDao = new InMemoryUserDao();
+
+        ImportStats stats = new UserCsvImporter(userDao, 2, 1, 2).importFile(csv);
+
+        assertEquals(6, stats.getRowsRead());
+        assertEquals(3, stats.getRowsRejected());
+        assertEquals(3, stats.getRowsInserted());
+        assertEquals(0, stats.getRowsFailed());
+        assertEquals(10.5, userDao.selectById("1").getBalance());
+        assertNotNull(userDao.selectBy("carol, jr", "secret3"));
+        assertNotNull(userDao.selectBy("frank", "secret6"));
+        assertNull(userDao.selectById("2"));
+    }
+
+    @Test
+    public void importEveryRow_whenFileIsLargerThanQueues() throws Exception {
+        List<String> lines = IntStream.range(0, 5000)
+                .mapToObj(i -> i + ",user_" + i + ",password_" + i + ",user" + i + "@example.com")
+                .collect(Collectors.toList());
+        InMemoryUserDao userDao = new InMemoryUserDao();
+
+        ImportStats stats = new UserCsvImporter(userDao, 100, 2, 4).importFile(write(lines));
+
+        assertEquals(5000, stats.getRowsInserted());
+        assertEquals(5000, userDao.size());
+        assertNotNull(userDao.selectBy("user_4999", "password_4999"));
+        assertTrue(stats.getHashRowsPerSecond() > 0);
+        assertTrue(stats.getWriteRowsPerSecond() > 0);
+    }
+
+    @Test
+    public void countFailedRows_whenDatabaseRefusesThem() throws Exception {
+        InMemoryUserDao userDao = new InMemoryUserDao();
+        userDao.insert(UserDaoTest.newUser("1"));
+
+        ImportStats stats = new UserCsvImporter(userDao, 10, 2, 1)
+                .importFile(write(List.of("1,user_1,password_1,one@example.com", "2,two,password_2,two@example.com")));
+
+        assertEquals(1, stats.getRowsInserted());
+        assertEquals(1, stats.getRowsFailed());
+    }
+
+    @Test
+    public void stopAllStages_whenWritingFails() throws Exception {
+        List<String> lines = IntStream.range(0, 1000)
+                .mapToObj(i -> i + ",user_" + i + ",password_" + i + ",user" + i + "@example.com")
+                .collect(Collectors.toList());
+        Path csv = write(lines);
+        UserDao userDao = mock(UserDao.class);
+        when(userDao.hashPasswords(anyList())).thenAnswer(invocation -> new UserDao()
+                .hashPasswords(invocation.getArgument(0)));
+        when(userDao.insertAllHashed(anyCollection())).thenThrow(new RuntimeException("database is down"));
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            RuntimeException e = assertThrows(RuntimeException.class,
+                    () -> new UserCsvImporter(userDao, 10, 1, 2).importFile(csv));
+            assertEquals("database is down", e.getCause().getMessage());
+        });
+    }
+
+    @Test
+    public void splitQuotedFields_whenLineIsParsed() {
+        assertEquals(List.of("a", "b,c", "say \"hi\"", ""), UserCsvImporter.parseLine("a,\"b,c\",\"say \"\"hi\"\"\","));
+    }
+
+    @Test
+    public void rejectLine_whenPasswordIsShort() throws Exception {
+        InMemoryUserDao userDao = new InMemoryUserDao();
+
+        ImportStats stats = new UserCsvImporter(userDao, 10, 2, 1)
+                .importFile(write(List.of("1,alice,12345,alice@example.com")));
+
+        assertEquals(1, stats.getRowsRejected());
+        assertEquals(0, userDao.size());
+    }
+}
@@ -1,10 +1,31 @@
 package com.github.budwing.clean.ut;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeAll;
@@ -117,6 +138,42 @@ public class UserDaoTest {
         log.info("deleted user by id: {}", id);
     }
 
+    /**
+     * Upserting twice inserts the user, then overwrites it.
+     */
+    @Test
+    @DisabledIf("databaseIsNotConfigured")
+    public void overwriteUser_whenUpsertedAgain() {
+        String id = "test_id_1003";
+        if (userDao.selectById(id) != null) {
+            log.info("user already exists, delete it first.");
+            assertTrue(userDao.deleteById(id));
+        }
+        // username is unique, another id may hold it
+        if (userDao.selectBy("budwing_upsert", "budwing") != null) {
+            log.info("username is taken, delete it first.");
+            assertTrue(userDao.deleteBy("budwing_upsert", "budwing"));
+        }
+
+        User user = new User();
+        user.setUserId(id);
+        user.setUsername("budwing_upsert");
+        user.setPassword("budwing");
+        user.setEmail("budwing@gmail.com");
+        user.setBalance(100.0);
+        assertTrue(userDao.upsert(user));
+        user.setBalance(50.0);
+        assertTrue(userDao.upsert(user));
+        log.info("upserted user: {}", user);
+
+        User userFromDB = userDao.selectBy("budwing_upsert", "budwing");
+        log.info("user from db: {}", userFromDB);
+        assertNotNull(userFromDB);
+        assertEquals(50.0, userFromDB.getBalance());
+
+        assertTrue(userDao.deleteById(id));
+    }
+
     /**
      * It covers the exception path....
      * We should add more...
@@ -140,6 +197,289 @@ public class UserDaoTest {
         assertEquals(expected, hash);
     }
 
+    /**
+     * A pool of mocked connections lets us test the JDBC logic without a
+     * database.
+     */
+    @Test
+    public void insertInBatches_whenUsersExceedBatchSize() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeBatch()).thenReturn(new int[] { 1, 1 }, new int[] { 1 });
+        UserDao userDao = userDaoWith(connection);
+        userDao.setBatchSize(2);
+
+        List<BatchOutcome> outcomes = userDao.insertAll(List.of(newUser("1"), newUser("2"), newUser("3")));
+
+        assertEquals(List.of(BatchOutcome.SUCCESS, BatchOutcome.SUCCESS, BatchOutcome.SUCCESS), outcomes);
+        verify(ps, times(3)).addBatch();
+        verify(ps, times(2)).executeBatch();
+        verify(connection, times(2)).commit();
+    }
+
+    @Test
+    public void rollbackOnlyFailedBatch_whenBatchInsertFails() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeBatch()).thenThrow(new BatchUpdateException()).thenReturn(new int[] { 1 });
+        UserDao userDao = userDaoWith(connection);
+        userDao.setBatchSize(2);
+
+        List<BatchOutcome> outcomes = userDao.insertAll(List.of(newUser("1"), newUser("2"), newUser("3")));
+
+        assertEquals(List.of(BatchOutcome.FAILED, BatchOutcome.FAILED, BatchOutcome.SUCCESS), outcomes);
+        verify(connection).rollback();
+        verify(connection).commit();
+    }
+
+    @Test
+    public void bindPasswordAsIs_whenUsersAreInsertedHashed() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeBatch()).thenReturn(new int[] { 1 });
+        UserDao userDao = userDaoWith(connection);
+        User user = newUser("1");
+        user.setPassword("already-hashed");
+
+        List<BatchOutcome> outcomes = userDao.insertAllHashed(List.of(user));
+
+        assertEquals(List.of(BatchOutcome.SUCCESS), outcomes);
+        verify(ps).setString(3, "already-hashed");
+    }
+
+    @Test
+    public void selectOnlyCredentialColumns_whenCredentialsAreSelected() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        ResultSet rs = mockedResultSet(1);
+        when(rs.getBoolean(3)).thenReturn(true);
+        when(rs.getBoolean(4)).thenReturn(true);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeQuery()).thenReturn(rs);
+        UserDao userDao = userDaoWith(connection);
+
+        UserCredentials credentials = userDao.selectCredentialsBy("name_1");
+
+        verify(connection).prepareStatement("select user_id, password, locked, active from users where user_name=?");
+        assertEquals("id_1", credentials.getUserId());
+        assertTrue(credentials.isLocked());
+        assertTrue(credentials.matches("name_1"));
+    }
+
+    @Test
+    public void refreshUserWithOneStatement_whenUpserted() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeUpdate()).thenReturn(2);
+        UserDao userDao = userDaoWith(connection);
+
+        assertTrue(userDao.upsert(newUser("1")));
+
+        verify(connection).prepareStatement(contains("on duplicate key update"));
+        verify(ps).setString(3, userDao.hashPassword("password_1"));
+        verify(ps).executeUpdate();
+    }
+
+    @Test
+    public void upsertInBatches_whenUsersExceedBatchSize() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeBatch()).thenReturn(new int[] { 1, 0 }, new int[] { 2 });
+        UserDao userDao = userDaoWith(connection);
+        userDao.setBatchSize(2);
+
+        List<BatchOutcome> outcomes = userDao.upsertAll(List.of(newUser("1"), newUser("2"), newUser("3")));
+
+        assertEquals(List.of(BatchOutcome.SUCCESS, BatchOutcome.NO_CHANGE, BatchOutcome.SUCCESS), outcomes);
+        verify(ps, times(2)).executeBatch();
+        verify(connection, times(2)).commit();
+    }
+
+    @Test
+    public void commitOnce_whenUsersAreUpdatedTogether() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeBatch()).thenReturn(new int[] { 1, 0, 1 });
+        UserDao userDao = userDaoWith(connection);
+        userDao.setBatchSize(1);
+
+        List<BatchOutcome> outcomes = userDao.updateAll(List.of(newUser("1"), newUser("2"), newUser("3")));
+
+        assertEquals(List.of(BatchOutcome.SUCCESS, BatchOutcome.NO_CHANGE, BatchOutcome.SUCCESS), outcomes);
+        verify(ps).executeBatch();
+        verify(connection).commit();
+    }
+
+    @Test
+    public void releaseConnection_whenScanStreamIsClosed() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        ResultSet rs = mockedResultSet(2);
+        when(connection.prepareStatement(anyString(), anyInt(), anyInt())).thenReturn(ps);
+        when(ps.executeQuery()).thenReturn(rs);
+        UserDao userDao = userDaoWith(connection);
+        userDao.setScanFetchSize(100);
+
+        List<String> ids;
+        try (Stream<User> users = userDao.scan()) {
+            ids = users.map(User::getUserId).collect(Collectors.toList());
+        }
+
+        assertEquals(List.of("id_1", "id_2"), ids);
+        verify(ps).setFetchSize(100);
+        verify(rs).close();
+        verify(ps).close();
+        assertEquals(1, userDao.getConnectionPool().getStats().getIdle());
+    }
+
+    @Test
+    public void seekAfterLastId_whenSelectNextPage() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        ResultSet rs = mockedResultSet(2);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeQuery()).thenReturn(rs);
+        UserDao userDao = userDaoWith(connection);
+
+        List<User> page = userDao.selectPage("id_0", 2);
+
+        assertEquals(2, page.size());
+        verify(connection).prepareStatement(
+                "select " + UserRowMapper.COLUMNS + " from users where user_id > ? order by user_id limit ?");
+        verify(ps).setString(1, "id_0");
+        verify(ps).setInt(2, 2);
+    }
+
+    @Test
+    public void keepMissingIds_whenSelectByIds() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        ResultSet firstChunk = mockedResultSet(1);
+        ResultSet secondChunk = mockedResultSet(0);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeQuery()).thenReturn(firstChunk, secondChunk);
+        UserDao userDao = userDaoWith(connection);
+        userDao.setMultiGetChunkSize(2);
+
+        Map<String, User> users = userDao.selectByIds(List.of("id_1", "id_2", "id_3"));
+
+        assertEquals(List.of("id_1", "id_2", "id_3"), List.copyOf(users.keySet()));
+        assertNotNull(users.get("id_1"));
+        assertNull(users.get("id_2"));
+        assertNull(users.get("id_3"));
+        verify(connection, times(1)).prepareStatement(
+                "select " + UserRowMapper.COLUMNS + " from users where user_id in (?, ?)");
+        // the short last chunk is padded with its last id
+        verify(ps).setString(1, "id_3");
+        verify(ps).setString(2, "id_3");
+        verify(ps, times(2)).executeQuery();
+    }
+
+    @Test
+    public void debitInOneStatement_whenWithdrawing() throws SQLException {
+        Connection connection = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeUpdate()).thenReturn(1, 0);
+        UserDao userDao = userDaoWith(connection);
+
+        assertTrue(userDao.debit("id_1", 50.0));
+        assertFalse(userDao.debit("id_1", 50.0));
+
+        verify(connection).prepareStatement("update users set balance=balance-? where user_id=? and balance>=?");
+        verify(ps, times(2)).setDouble(3, 50.0);
+    }
+
+    @Test
+    public void readFromReplica_unlessCallerReadsFromPrimary() throws SQLException {
+        Connection primary = mockedConnection();
+        Connection replica = mockedConnection();
+        PreparedStatement ps = mock(PreparedStatement.class);
+        ResultSet rs = mockedResultSet(0);
+        when(primary.prepareStatement(anyString())).thenReturn(ps);
+        when(replica.prepareStatement(anyString())).thenReturn(ps);
+        when(ps.executeQuery()).thenReturn(rs);
+        UserDao userDao = userDaoWith(primary);
+        userDao.setReplicaRouter(new ReplicaRouter(
+                List.of(new ConnectionPool(() -> replica, 1, 0, 100, 1, 500)), 1000));
+
+        userDao.selectById("id_1");
+        verify(replica).prepareStatement(anyString());
+        verify(primary, never()).prepareStatement(anyString());
+
+        userDao.readFromPrimary(() -> userDao.selectById("id_1"));
+        verify(primary).prepareStatement(anyString());
+    }
+
+    @Test
+    public void readFromPrimary_whenQueryOnReplicaFails() throws SQLException {
+        Connection primary = mockedConnection();
+        Connection replica = mockedConnection();
+        PreparedStatement primaryPs = mock(PreparedStatement.class);
+        PreparedStatement replicaPs = mock(PreparedStatement.class);
+        ResultSet rs = mockedResultSet(1);
+        when(primary.prepareStatement(anyString())).thenReturn(primaryPs);
+        when(replica.prepareStatement(anyString())).thenReturn(replicaPs);
+        when(primaryPs.executeQuery()).thenReturn(rs);
+        when(replicaPs.executeQuery()).thenThrow(new SQLRecoverableException("Communications link failure"));
+        UserDao userDao = userDaoWith(primary);
+        ReplicaRouter router = new ReplicaRouter(List.of(new ConnectionPool(() -> replica, 1, 0, 100, 1, 500)),
+                60000);
+        userDao.setReplicaRouter(router);
+
+        assertEquals("id_1", userDao.selectById("id_1").getUserId());
+
+        verify(primaryPs).executeQuery();
+        assertEquals(1, router.getEjections());
+    }
+
+    @Test
+    public void throwException_whenPageLimitIsNotPositive() {
+        assertThrows(IllegalArgumentException.class, () -> userDao.selectPage(null, 0));
+    }
+
+    /**
+     * A result set of rows rows in the column order of UserRowMapper.COLUMNS,
+     * user_id of row n is "id_n", user_name is "name_n".
+     */
+    static ResultSet mockedResultSet(int rows) throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        int[] row = { 0 };
+        String[] prefixes = { "", "id_", "name_", "password_", "email_" };
+        when(rs.next()).thenAnswer(invocation -> ++row[0] <= rows);
+        when(rs.getString(anyInt())).thenAnswer(invocation -> prefixes[invocation.getArgument(0, Integer.class)]
+                + row[0]);
+        when(rs.getTimestamp(anyInt())).thenReturn(new Timestamp(0));
+        return rs;
+    }
+
+    static Connection mockedConnection() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(connection.getAutoCommit()).thenReturn(true);
+        return connection;
+    }
+
+    static UserDao userDaoWith(Connection connection) {
+        UserDao userDao = new UserDao();
+        userDao.setConnectionPool(new ConnectionPool(() -> connection, 1, 0, 100, 1, 500));
+        return userDao;
+    }
+
+    static User newUser(String id) {
+        User user = new User();
+        user.setUserId(id);
+        user.setUsername("user_" + id);
+        user.setPassword("password_" + id);
+        user.setEmail("user_" + id + "@example.com");
+        return user;
+    }
+
     public static boolean databaseIsNotConfigured() {
         return userDao.getUrl() == null;
     }
@@ -0,0 +1,140 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.budwing.User;
+
+public class UserExporterTest {
+    @TempDir
+    Path directory;
+    private InMemoryUserDao userDao;
+
+    @BeforeEach
+    public void setUp() {
+        userDao = new InMemoryUserDao();
+    }
+
+    private void insertUsers(int count) {
+        for (int i = 0; i < count; i++) {
+            User user = UserDaoTest.newUser(String.format("%05d", i));
+            user.setEmail("user" + i + "@example.com");
+            user.setCreatedAt(new Date(0));
+            userDao.insert(user);
+        }
+    }
+
+    @Test
+    public void writeHeaderAndQuotedFields_whenExportedAsCsv() throws Exception {
+        User user = UserDaoTest.newUser("1");
+        user.setUsername("smith, \"js\"");
+        user.setEmail("js@example.com");
+        user.setBalance(12.5);
+        user.setLoginTimes(3);
+        user.setCreatedAt(new Date(0));
+        userDao.insert(user);
+        Path target = directory.resolve("users.csv");
+
+        ExportStats stats = new UserExporter(userDao, 4096, false).export(target, UserExporter.Format.CSV);
+
+        assertEquals(List.of("user_id,user_name,email,balance,active,created_at,login_times",
+                "1,\"smith, \"\"js\"\"\",js@example.com,12.5,true,1970-01-01T00:00:00Z,3"),
+                Files.readAllLines(target, StandardCharsets.UTF_8));
+        assertEquals(1, stats.getRows());
+        assertEquals(Files.size(target), stats.getBytes());
+        assertEquals(stats.getBytes(), stats.getFileBytes());
+    }
+
+    @Test
+    public void writeEveryUser_whenExportIsLargerThanBuffer() throws Exception {
+        insertUsers(2000);
+        Path target = directory.resolve("users.csv");
+
+        ExportStats stats = new UserExporter(userDao, 4096, false).export(target, UserExporter.Format.CSV);
+
+        List<String> lines = Files.readAllLines(target, StandardCharsets.UTF_8);
+        assertEquals(2001, lines.size());
+        assertTrue(lines.get(2000).startsWith("01999,user_01999,"));
+        assertEquals(2000, stats.getRows());
+        assertTrue(stats.getBytes() > 4096 * 10);
+    }
+
+    @Test
+    public void readBackUsers_whenExportedAsBinary() throws Exception {
+        insertUsers(3);
+        Path target = directory.resolve("users.bin");
+
+        new UserExporter(userDao, 4096, false).export(target, UserExporter.Format.BINARY);
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(target))) {
+            assertEquals(UserExporter.BINARY_MAGIC, in.readInt());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(String.format("%05d", i), readString(in));
+                assertEquals(String.format("user_%05d", i), readString(in));
+                assertEquals("user" + i + "@example.com", readString(in));
+                assertEquals(0.0, in.readDouble());
+                assertEquals(1, in.readByte());
+                assertEquals(0L, in.readLong());
+                assertEquals(0, in.readInt());
+            }
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private static String readString(DataInputStream in) throws Exception {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void writeSameContentCompressed_whenGzipIsOn() throws Exception {
+        insertUsers(2000);
+        Path plain = directory.resolve("users.csv");
+        Path gzipped = directory.resolve("users.csv.gz");
+        new UserExporter(userDao, 4096, false).export(plain, UserExporter.Format.CSV);
+
+        ExportStats stats = new UserExporter(userDao, 4096, true).export(gzipped, UserExporter.Format.CSV);
+
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(gzipped))) {
+            assertArrayEquals(Files.readAllBytes(plain), in.readAllBytes());
+        }
+        assertTrue(stats.getFileBytes() < stats.getBytes());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void throwException_whenReadingFailsDuringGzip() {
+        UserDao failing = mock(UserDao.class);
+        doAnswer(invocation -> {
+            Consumer<User> action = invocation.getArgument(0);
+            action.accept(UserDaoTest.newUser("1"));
+            throw new RuntimeException("connection lost");
+        }).when(failing).forEach(any(Consumer.class));
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(RuntimeException.class,
+                () -> new UserExporter(failing, 4096, true).export(directory.resolve("users.csv.gz"),
+                        UserExporter.Format.CSV)));
+    }
+}
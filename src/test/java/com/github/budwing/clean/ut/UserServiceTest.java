@@ -1,7 +1,13 @@
 package com.github.budwing.clean.ut;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.junit.jupiter.api.Test;
@@ -33,11 +39,15 @@ public class UserServiceTest {
         user.setUserId("test_id_2001");
         user.setUsername(username);
         user.setPassword(password);
-        when(userDao.selectBy(username, password)).thenReturn(user);
+        when(userDao.selectCredentialsBy(username))
+                .thenReturn(new UserCredentials("test_id_2001", "hash", false, true));
+        when(userDao.hashPassword(password)).thenReturn("hash");
+        when(userDao.selectById("test_id_2001")).thenReturn(user);
 
         User result = userService.login(username, password);
         log.info("result: {}", result);
         assertEquals(user, result);
+        verify(userDao, never()).selectBy(anyString(), anyString());
     }
 
     @Test
@@ -47,13 +57,32 @@ public class UserServiceTest {
 
         String username = "budwing";
         String password = "123456";
-        when(userDao.selectBy(username, password)).thenReturn(null);
+        when(userDao.selectCredentialsBy(username)).thenReturn(null);
 
         User result = userService.login(username, password);
         log.info("result: {}", result);
         assertNull(result);
     }
 
+    /**
+     * A failed or locked login never loads the full user.
+     */
+    @Test
+    public void loginFailedWithoutLoadingUser_whenPasswordIsWrongOrUserIsLocked() {
+        UserService userService = new UserService();
+        userService.setUserDao(userDao);
+        when(userDao.selectCredentialsBy("budwing")).thenReturn(new UserCredentials("id_1", "hash", false, true));
+        when(userDao.selectCredentialsBy("locked")).thenReturn(new UserCredentials("id_2", "hash", true, true));
+        when(userDao.hashPassword("wrong")).thenReturn("other");
+        when(userDao.hashPassword("123456")).thenReturn("hash");
+
+        assertNull(userService.login("budwing", "wrong"));
+        assertNull(userService.login("locked", "123456"));
+        assertNull(userService.authenticate("locked", "123456"));
+        assertEquals("id_1", userService.authenticate("budwing", "123456").getUserId());
+        verify(userDao, never()).selectById(anyString());
+    }
+
     @Test
     public void updateLoginAttempts_whenTheUserIsExisted() {
         UserService userService = new UserService();
@@ -68,7 +97,10 @@ public class UserServiceTest {
         user.setUserId("test_id_2001");
         user.setUsername(username);
         user.setPassword(password);
-        when(userDao.selectBy(username, password)).thenReturn(user);
+        when(userDao.selectCredentialsBy(username))
+                .thenReturn(new UserCredentials("test_id_2001", "hash", false, true));
+        when(userDao.hashPassword(password)).thenReturn("hash");
+        when(userDao.selectById("test_id_2001")).thenReturn(user);
         when(userDao.update(user)).thenReturn(true);
 
         User result = userService.login(username, password);
@@ -85,22 +117,12 @@ public class UserServiceTest {
         userService.setUserDao(userDao);
         String username = "budwing";
         String password = "123456";
-        User user = new User();
-        user.setUserId("test_id_2001");
-        user.setUsername(username);
-        user.setPassword(password);
-        user.setBalance(100.0);
-        when(userDao.selectBy(username, password)).thenReturn(user);
-        when(userDao.update(user)).thenReturn(true);
-        boolean result = userService.withdraw(username, password, 50.0);
-        log.info("result: {}", result);
-        assertEquals(true, result);
-        assertEquals(50.0, user.getBalance());
+        when(userDao.debitBy(username, password, 50.0)).thenReturn(true);
 
-        result = userService.withdraw(username, password, 50.0);
+        boolean result = userService.withdraw(username, password, 50.0);
         log.info("result: {}", result);
         assertEquals(true, result);
-        assertEquals(0.0, user.getBalance());
+        verify(userDao, never()).selectBy(username, password);
     }
 
     @Test
@@ -109,15 +131,31 @@ public class UserServiceTest {
         userService.setUserDao(userDao);
         String username = "budwing";
         String password = "123456";
-        User user = new User();
-        user.setUserId("test_id_2001");
-        user.setUsername(username);
-        user.setPassword(password);
-        user.setBalance(100.0);
-        when(userDao.selectBy(username, password)).thenReturn(user);
+        when(userDao.debitBy(username, password, 100.1)).thenReturn(false);
+
         boolean result = userService.withdraw(username, password, 100.1);
         log.info("result: {}", result);
         assertEquals(false, result);
-        assertEquals(100.0, user.getBalance());
+    }
+
+    @Test
+    public void withdrawFailed_whenAmountIsNotPositive() {
+        UserService userService = new UserService();
+        userService.setUserDao(userDao);
+
+        assertEquals(false, userService.withdraw("budwing", "123456", 0.0));
+        assertEquals(false, userService.withdraw("budwing", "123456", -1.0));
+        verify(userDao, never()).debitBy(anyString(), anyString(), anyDouble());
+    }
+
+    @Test
+    public void reportReady_whenWarmUpIsDisabled() {
+        UserService userService = new UserService();
+        userService.setUserDao(userDao);
+        assertFalse(userService.isReady());
+
+        userService.warmUp();
+
+        assertTrue(userService.isReady());
     }
 }
@@ -0,0 +1,55 @@
+package com.github.budwing.clean.ut;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class WarmUpTest {
+
+    @Test
+    public void prepareHotStatementsOnEveryIdleConnection_whenWarmedUp() throws SQLException {
+        List<Connection> connections = new ArrayList<>();
+        UserDao userDao = new UserDao();
+        userDao.setConnectionPool(new ConnectionPool(() -> {
+            Connection connection = UserDaoTest.mockedConnection();
+            when(connection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+            connections.add(connection);
+            return connection;
+        }, 4, 2, 100, 1, 500));
+        WarmUp warmUp = new WarmUp(userDao, 10);
+
+        warmUp.run();
+
+        assertEquals(2, connections.size());
+        for (Connection connection : connections) {
+            for (String sql : UserDao.HOT_STATEMENTS) {
+                verify(connection).prepareStatement(sql);
+            }
+        }
+        assertEquals(2, userDao.getConnectionPool().getStats().getIdle());
+    }
+
+    @Test
+    public void runEveryStep_whenDatabaseIsDown() {
+        UserDao userDao = new UserDao();
+        userDao.setConnectionPool(new ConnectionPool(() -> {
+            throw new SQLException("connection refused");
+        }, 4, 2, 100, 1, 500));
+        WarmUp warmUp = new WarmUp(userDao, 10);
+
+        Map<String, Long> millis = warmUp.run();
+
+        assertEquals(List.of("connections", "statements", "hashing", "mapping"), new ArrayList<>(millis.keySet()));
+    }
+}